@@ -0,0 +1,88 @@
+package jp.jaxa.iss.kibo.rpc.defaultapk;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+// CAD's overlap stage. Pure Java so it can also be run and benchmarked off-device.
+public class BoxOverlap {
+
+    // Clears the valid bit of every box that is mostly covered by another box; of the pair, the box
+    // with the larger covered fraction loses. Boxes are swept in order of left edge and only pairs whose
+    // x-intervals intersect are tested, since every other pair has zero overlap and cannot trigger
+    // the rule. Marking only ever clears bits of valid, so the result does not depend on pair order.
+    // The number of pairs tested is added to Metrics.Counter.CAD_OVERLAP_PAIRS.
+    public static void resolve(DetectionBatch a, BitSet valid, boolean bypass) {
+        int n = a.size();
+        int[] order = sortByLeft(a);
+        int[] active = new int[n];
+        int activeCount = 0;
+        long pairs = 0;
+        for (int k = 0; k < n; k++) {
+            int i = order[k];
+            int left = (int) a.left[i];
+            int kept = 0;
+            for (int m = 0; m < activeCount; m++) {
+                int j = active[m];
+                if ((int) a.right[j] <= left) {
+                    continue; // Ends before every remaining box starts
+                }
+                active[kept++] = j;
+                pairs++;
+                int lo = Math.min(i, j), hi = Math.max(i, j);
+                double intersection = intersectionArea(a, lo, hi);
+                if (intersection == 0) {
+                    continue;
+                }
+                double overlapPercentage1 = (intersection / (a.width(lo) * a.height(lo))) * 100;
+                double overlapPercentage2 = (intersection / (a.width(hi) * a.height(hi))) * 100;
+                if (overlapMarksFaulty(overlapPercentage1, overlapPercentage2, bypass)) {
+                    int loser = overlapPercentage1 > overlapPercentage2 ? lo : hi;
+                    valid.clear(loser);
+                }
+            }
+            activeCount = kept;
+            active[activeCount++] = i;
+        }
+        Metrics.add(Metrics.Counter.CAD_OVERLAP_PAIRS, pairs);
+    }
+
+    // Containment rule for a pair, with p1 / p2 the percentage of the lower / higher index box
+    // covered by the other. The original condition was
+    //     p1 > 65 || p2 > 65 && bypass != 1 && p1 < 80 && p2 < 80
+    // and && binds tighter than ||, so it reads as the two explicit cases below:
+    //   - the first box is more than 65% covered: always a conflict, bypass or not;
+    //   - the second box is more than 65% covered: a conflict only without a high-score bypass and
+    //     while neither box is 80% or more covered.
+    public static boolean overlapMarksFaulty(double p1, double p2, boolean bypass) {
+        if (p1 > 65) {
+            return true;
+        }
+        return p2 > 65 && !bypass && p1 < 80 && p2 < 80;
+    }
+
+    // Indices by ascending integer left edge (ties by index), via one primitive long sort
+    private static int[] sortByLeft(DetectionBatch a) {
+        int n = a.size();
+        long[] keys = new long[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = ((long) (int) a.left[i] << 32) | i;
+        }
+        Arrays.sort(keys);
+        int[] order = new int[n];
+        for (int k = 0; k < n; k++) {
+            order[k] = (int) keys[k];
+        }
+        return order;
+    }
+
+    private static double intersectionArea(DetectionBatch a, int i, int j) {
+        int xLeft = Math.max((int) a.left[i], (int) a.left[j]);
+        int yTop = Math.max((int) a.top[i], (int) a.top[j]);
+        int xRight = Math.min((int) a.right[i], (int) a.right[j]);
+        int yBottom = Math.min((int) a.bottom[i], (int) a.bottom[j]);
+        if (xRight < xLeft || yBottom < yTop) {
+            return 0.0;
+        }
+        return (xRight - xLeft) * (yBottom - yTop);
+    }
+}
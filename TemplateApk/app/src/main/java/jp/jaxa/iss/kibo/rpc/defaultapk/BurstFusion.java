@@ -0,0 +1,102 @@
+package jp.jaxa.iss.kibo.rpc.defaultapk;
+
+import java.util.Arrays;
+
+// Fuses the detections of several frames of the same area. Every frame votes with its per-class
+// counts and best confidence. The fused item is the class with the highest summed confidence, and
+// its count is the median of that class's per-frame counts, so one bad frame cannot swing the result.
+public class BurstFusion {
+    private final int numClasses;
+    private final int[][] counts; // [frame][class]
+    private final float[] confidenceSum; // per class, summed best confidence over frames
+    private final int[] frameClass; // per frame, class of its most confident detection or -1
+    private final float[] best; // scratch, per class best confidence of the current frame
+    private int frames;
+
+    public BurstFusion(int numClasses, int maxFrames) {
+        this.numClasses = numClasses;
+        this.counts = new int[maxFrames][numClasses];
+        this.confidenceSum = new float[numClasses];
+        this.frameClass = new int[maxFrames];
+        this.best = new float[numClasses];
+    }
+
+    public void addFrame(DetectionBatch detections) {
+        if (frames == counts.length) {
+            return;
+        }
+        int[] frameCounts = counts[frames];
+        Arrays.fill(best, 0);
+        int topClass = -1;
+        float topScore = 0;
+        for (int i = 0; i < detections.size(); i++) {
+            int c = detections.classId[i];
+            if (c < 0 || c >= numClasses) {
+                continue;
+            }
+            frameCounts[c]++;
+            best[c] = Math.max(best[c], detections.score[i]);
+            if (detections.score[i] > topScore) {
+                topScore = detections.score[i];
+                topClass = c;
+            }
+        }
+        for (int c = 0; c < numClasses; c++) {
+            confidenceSum[c] += best[c];
+        }
+        frameClass[frames] = topClass;
+        frames++;
+    }
+
+    public int frameCount() {
+        return frames;
+    }
+
+    // True once the last `window` frames agree on both the item and its count
+    public boolean isStable(int window) {
+        if (frames < window) {
+            return false;
+        }
+        int c = frameClass[frames - 1];
+        if (c < 0) {
+            return false;
+        }
+        for (int f = frames - window; f < frames; f++) {
+            if (frameClass[f] != c || counts[f][c] != counts[frames - 1][c]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Class with the highest summed confidence, or -1 if no frame detected anything
+    public int fusedClass() {
+        int bestClass = -1;
+        float bestSum = 0;
+        for (int c = 0; c < numClasses; c++) {
+            if (confidenceSum[c] > bestSum) {
+                bestSum = confidenceSum[c];
+                bestClass = c;
+            }
+        }
+        return bestClass;
+    }
+
+    public int fusedCount() {
+        int c = fusedClass();
+        if (c < 0) {
+            return 0;
+        }
+        int[] perFrame = new int[frames];
+        for (int f = 0; f < frames; f++) {
+            perFrame[f] = counts[f][c];
+        }
+        Arrays.sort(perFrame);
+        return Math.round((perFrame[(frames - 1) / 2] + perFrame[frames / 2]) / 2f);
+    }
+
+    public float fusedConfidence() {
+        int c = fusedClass();
+        return c < 0 || frames == 0 ? 0 : confidenceSum[c] / frames;
+    }
+}
@@ -1,6 +1,5 @@
 package jp.jaxa.iss.kibo.rpc.defaultapk;
 
-import android.graphics.RectF;
 import android.util.Log;
 
 import org.opencv.core.CvType;
@@ -9,164 +8,291 @@ import org.opencv.core.MatOfPoint;
 import org.opencv.core.Point;
 import org.opencv.core.Rect;
 import org.opencv.core.Scalar;
-import org.opencv.imgcodecs.Imgcodecs;
 import org.opencv.imgproc.Imgproc;
 import org.opencv.imgproc.Moments;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
+// Centroid-deviation validator for detected boxes. A box is valid when the area-weighted centroid
+// of its edge contours sits close to the box center, and it is not mostly covered by another box.
+// The source is converted to gray once, boxes are processed in parallel on a small fixed pool, and
+// every worker reuses its own scratch Mats. Per-call temporaries come from a MatPool and are
+// returned before validate() does. Call shutdown() when done with the validator; it frees the
+// workers' scratch Mats, so the validator cannot be used afterwards.
 public class CAD {
+    // Sum of absolute x/y centroid deviations, in percent of the box size, at which a box is faulty
+    private static final double FAULT_DEVIATION = 12.5;
+    // Boxes scored at least this high are always valid and disable the soft overlap rule
+    private static final double BYPASS_SCORE = 0.83;
 
+    public static final int STATUS_NO_CONTOURS = 0;
+    public static final int STATUS_VALID = 1;
+    public static final int STATUS_FAULTY = 2;
 
+    public static class Result {
+        // Indices of the valid boxes, ascending; validCount() of them are used
+        public final int[] validIndices;
+        // Per box: sum of absolute centroid deviations in percent, NaN if it had no contours
+        public final double[] deviation;
+        // Per box: one of the STATUS_ constants
+        public final int[] status;
+        // Annotated copy of the source (red faulty, green valid), or null if not requested
+        public final Mat annotated;
+        private final int validCount;
 
+        Result(int[] validIndices, int validCount, double[] deviation, int[] status, Mat annotated) {
+            this.validIndices = validIndices;
+            this.validCount = validCount;
+            this.deviation = deviation;
+            this.status = status;
+            this.annotated = annotated;
+        }
 
-    public static List<Object> Centroid_processing(List<RectF> a, int post_num, List<Float> score) {
-        int bypass = 0;
-        class Utils {
-            public double intersectionArea(int[] rect1, int[] rect2) {
-                int xLeft = Math.max(rect1[0], rect2[0]);
-                int yTop = Math.max(rect1[1], rect2[1]);
-                int xRight = Math.min(rect1[2], rect2[2]);
-                int yBottom = Math.min(rect1[3], rect2[3]);
+        public int validCount() {
+            return validCount;
+        }
+    }
 
-                if (xRight < xLeft || yBottom < yTop) {
-                    return 0.0;
-                }
+    // Per-worker buffers, reused for every box that worker processes
+    private static class Scratch {
+        final Mat edged = new Mat();
+        final Mat dilation = new Mat();
+        final Mat binary = new Mat();
+        final Mat hierarchy = new Mat();
+        final Mat kernel = Mat.ones(2, 2, CvType.CV_8U);
+        final List<MatOfPoint> contours = new ArrayList<>();
+
+        void release() {
+            edged.release();
+            dilation.release();
+            binary.release();
+            hierarchy.release();
+            kernel.release();
+        }
+    }
 
-                return (xRight - xLeft) * (yBottom - yTop);
+    private final ExecutorService pool;
+    private final int threads;
+    private final MatPool mats;
+    // Every Scratch handed out, workers' and callers', so shutdown() can free their native memory
+    private final List<Scratch> allScratch = new ArrayList<>();
+    private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            Scratch s = new Scratch();
+            synchronized (allScratch) {
+                allScratch.add(s);
             }
+            return s;
         }
-        Utils utils = new Utils();
-        String default_file;
-
-        default_file = "sdcard/data/jp.jaxa.iss.kibo.rpc.thailand/immediate/DebugImages/post_" + post_num + ".png";
-        Mat src = Imgcodecs.imread(default_file, Imgcodecs.IMREAD_COLOR);
-        Mat img_show = src.clone();
-        List<Integer> faultyRectangles = new ArrayList<>();
-        List<Integer> correctRectangles = new ArrayList<>();
-
-        for (int n = 0; n < a.size(); n++) {
-            RectF rectF = a.get(n);
-            Rect roi = new Rect((int) rectF.left, (int) rectF.top, (int) (rectF.right - rectF.left), (int) (rectF.bottom - rectF.top));
-            Mat croppedImg = new Mat(src, roi);
-            Mat grayImage = new Mat();
-            Imgproc.cvtColor(croppedImg, grayImage, Imgproc.COLOR_BGR2GRAY);
-            Mat edged = new Mat();
-            Imgproc.Canny(grayImage, edged, 50, 150);
-
-            Mat kernel2 = Mat.ones(2, 2, CvType.CV_8U);
-            Mat dilation = new Mat();
-            Imgproc.dilate(edged, dilation, kernel2);
-
-            Mat binaryImage = new Mat();
-            Imgproc.threshold(dilation, binaryImage, 170, 255, Imgproc.THRESH_BINARY);
-
-            // Find contours in the binary image
-            List<MatOfPoint> contours = new ArrayList<>();
-            Mat hierarchy = new Mat();
-            Imgproc.findContours(binaryImage, contours, hierarchy, Imgproc.RETR_EXTERNAL, Imgproc.CHAIN_APPROX_SIMPLE);
-            double totalFilledArea = 0;
-            for (MatOfPoint contour : contours) {
-                totalFilledArea += Imgproc.contourArea(contour);
+    };
+
+    public CAD(int threads, MatPool mats) {
+        this.threads = Math.max(1, threads);
+        this.mats = mats;
+        this.pool = Executors.newFixedThreadPool(this.threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "cad-worker");
+                t.setDaemon(true);
+                return t;
             }
+        });
+    }
 
-            // Calculate total area of the cropped image
-            double imageArea = roi.width * roi.height;
+    // Waits for running box jobs, then releases every thread's scratch Mats
+    public void shutdown() throws InterruptedException {
+        pool.shutdown();
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        synchronized (allScratch) {
+            for (Scratch s : allScratch) {
+                s.release();
+            }
+            allScratch.clear();
+        }
+        scratch.remove();
+    }
 
-            // Calculate percentage of filled area
-            double percentageFilled = (totalFilledArea / imageArea) * 100;
-            Log.i("CAD", "Filled_Precentage:" + percentageFilled);
-            double totalArea = 0;
-            double weightedSumX = 0;
-            double weightedSumY = 0;
+    // src is the same in-memory crop the detector ran on (gray or BGR), so no image is re-read from disk.
+    // When render is set, the caller owns Result.annotated and should release it.
+    public Result validate(DetectionBatch a, Mat src, boolean render) throws InterruptedException {
+        try (MatScope scope = new MatScope(mats)) {
+            return validate(a, src, render, scope);
+        }
+    }
 
-            for (MatOfPoint contour : contours) {
-                Moments moments = Imgproc.moments(contour);
-                double area = moments.get_m00();
-                if (area != 0) {
-                    double cx = moments.get_m10() / area;
-                    double cy = moments.get_m01() / area;
-                    totalArea += area;
-                    weightedSumX += cx * area;
-                    weightedSumY += cy * area;
+    private Result validate(final DetectionBatch a, Mat src, boolean render, MatScope scope) throws InterruptedException {
+        long start = Metrics.start();
+        final int n = a.size();
+        final double[] deviation = new double[n];
+        final int[] status = new int[n];
+        final boolean[] bypassBox = new boolean[n];
+
+        final Mat gray;
+        if (src.channels() == 1) {
+            gray = src;
+        } else {
+            gray = scope.acquire(src.rows(), src.cols(), CvType.CV_8UC1);
+            Imgproc.cvtColor(src, gray, Imgproc.COLOR_BGR2GRAY);
+        }
+
+        if (n <= 1 || threads == 1) {
+            for (int i = 0; i < n; i++) {
+                measure(a, i, gray, deviation, status, bypassBox);
+            }
+        } else {
+            List<Future<Void>> pending = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                final int box = i;
+                pending.add(pool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        measure(a, box, gray, deviation, status, bypassBox);
+                        return null;
+                    }
+                }));
+            }
+            try {
+                for (Future<Void> f : pending) {
+                    f.get();
                 }
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("CAD worker failed", e.getCause());
+            }
+        }
+
+        boolean bypass = false;
+        for (int i = 0; i < n; i++) {
+            bypass |= bypassBox[i];
+        }
+        BitSet valid = new BitSet(n);
+        for (int i = 0; i < n; i++) {
+            if (status[i] == STATUS_VALID) {
+                valid.set(i);
             }
+        }
+        if (Metrics.TRACE) {
+            BitSet before = (BitSet) valid.clone();
+            BoxOverlap.resolve(a, valid, bypass);
+            before.andNot(valid);
+            Log.i("CAD", "Rectangles marked as faulty due to overlap with another rectangle: " + before);
+        } else {
+            BoxOverlap.resolve(a, valid, bypass);
+        }
 
-            if (totalArea != 0) {
-                double centroidX = weightedSumX / totalArea;
-                double centroidY = weightedSumY / totalArea;
-                Log.i("CAD", "Centroid of all contours in Rectangle:" + centroidX + "," + centroidY);
-                double centerX = roi.width / 2.0;
-                double centerY = roi.height / 2.0;
-                double deviationX = ((centroidX - centerX) / roi.width) * 100;
-                double deviationY = ((centroidY - centerY) / roi.height) * 100;
-                double sumOfAbsolutes = Math.abs(deviationX) + Math.abs(deviationY);
-                Log.i("CAD", "Deviation from center in Rectangle:" + deviationX + "," + deviationY);
-                Log.i("CAD", "Sum of absolutes:" + sumOfAbsolutes);
-                if (score.get(n) >= 0.83) {
-                    sumOfAbsolutes = 1;
-                    bypass=1;
+        int[] validIndices = new int[n];
+        int validCount = 0;
+        int faulty = 0;
+        for (int i = 0; i < n; i++) {
+            if (valid.get(i)) {
+                validIndices[validCount++] = i;
+            } else if (status[i] != STATUS_NO_CONTOURS) {
+                status[i] = STATUS_FAULTY;
+                faulty++;
+            }
+        }
+        Mat annotated = render ? render(a, src, status) : null;
 
-                }
-                if (sumOfAbsolutes >= 12.5) {
-                    // Mark rectangle as faulty (red)
-                    Imgproc.rectangle(img_show, new Point(roi.x, roi.y), new Point(roi.x + roi.width, roi.y + roi.height), new Scalar(255, 0, 0), 2);
-                    Log.i("Fault detected in Rectangle:", String.valueOf(n + 1));
-                    // Add this rectangle to faultyRectangles
-                    faultyRectangles.add(n);
-                } else {
-                    // Mark rectangle as correct (green)
-                    Imgproc.rectangle(img_show, new Point(roi.x, roi.y), new Point(roi.x + roi.width, roi.y + roi.height), new Scalar(0, 255, 0), 2);
-                    Log.i("No fault detected in Rectangle:", String.valueOf(n + 1));
-                    // Add this rectangle to correctRectangles
-                    correctRectangles.add(n);
-                }
-            } else {
-                Log.i("CAD", "No contours with non-zero area found in Rectangle");
+        Metrics.record(Metrics.Stage.CAD, start);
+        Metrics.add(Metrics.Counter.CAD_BOXES, n);
+        Metrics.add(Metrics.Counter.CAD_FAULTY, faulty);
+        return new Result(validIndices, validCount, deviation, status, annotated);
+    }
+
+    // Centroid test for one box. Writes only slot i of the output arrays, so workers never share a slot.
+    private void measure(DetectionBatch a, int i, Mat gray, double[] deviation, int[] status, boolean[] bypassBox) {
+        Scratch s = scratch.get();
+        Rect roi = boxRect(a, i, gray);
+        if (roi.width <= 0 || roi.height <= 0) {
+            deviation[i] = Double.NaN;
+            status[i] = STATUS_NO_CONTOURS;
+            return;
+        }
+        Mat grayImage = gray.submat(roi);
+        Imgproc.Canny(grayImage, s.edged, 50, 150);
+        grayImage.release();
+        Imgproc.dilate(s.edged, s.dilation, s.kernel);
+        Imgproc.threshold(s.dilation, s.binary, 170, 255, Imgproc.THRESH_BINARY);
+
+        // Find contours in the binary image
+        List<MatOfPoint> contours = s.contours;
+        Imgproc.findContours(s.binary, contours, s.hierarchy, Imgproc.RETR_EXTERNAL, Imgproc.CHAIN_APPROX_SIMPLE);
+        if (Metrics.TRACE) {
+            double totalFilledArea = 0;
+            for (MatOfPoint contour : contours) {
+                totalFilledArea += Imgproc.contourArea(contour);
             }
+            Log.i("CAD", "Filled_Precentage:" + (totalFilledArea / (roi.width * roi.height)) * 100);
         }
 
-        // Handle overlapping rectangles
-        for (int i = 0; i < a.size(); i++) {
-            for (int j = i + 1; j < a.size(); j++) {
-                RectF rectFi = a.get(i);
-                RectF rectFj = a.get(j);
-                int[] rect1 = {(int) rectFi.left, (int) rectFi.top, (int) rectFi.right, (int) rectFi.bottom};
-                int[] rect2 = {(int) rectFj.left, (int) rectFj.top, (int) rectFj.right, (int) rectFj.bottom};
-
-                double intersection = utils.intersectionArea(rect1, rect2);
-                double rect1Area = (rectFi.right - rectFi.left) * (rectFi.bottom - rectFi.top);
-                double rect2Area = (rectFj.right - rectFj.left) * (rectFj.bottom - rectFj.top);
-                double overlapPercentage1 = (intersection / rect1Area) * 100;
-                double overlapPercentage2 = (intersection / rect2Area) * 100;
-                Log.i("overlapPercentage1:", String.valueOf(overlapPercentage1));
-                Log.i("overlapPercentage2:", String.valueOf(overlapPercentage2));
-                if (overlapPercentage1 > 65 || overlapPercentage2 > 65 && bypass !=1 && overlapPercentage1 < 80 && overlapPercentage2 < 80) {
-                    if (overlapPercentage1 > overlapPercentage2) {
-                        if (correctRectangles.contains(i)) {
-                            correctRectangles.remove(Integer.valueOf(i));
-                            faultyRectangles.add(i);
-                            Rect roi = new Rect((int) rectFi.left, (int) rectFi.top, (int) (rectFi.right - rectFi.left), (int) (rectFi.bottom - rectFi.top));
-                            Imgproc.rectangle(img_show, new Point(roi.x, roi.y), new Point(roi.x + roi.width, roi.y + roi.height), new Scalar(255, 0, 0), 2);
-                            Log.i("Rectangle marked as faulty due to overlap with another rectangle:", String.valueOf(i + 1));
-                        }
-                    } else {
-                        if (correctRectangles.contains(j)) {
-                            correctRectangles.remove(Integer.valueOf(j));
-                            faultyRectangles.add(j);
-                            Rect roi = new Rect((int) rectFj.left, (int) rectFj.top, (int) (rectFj.right - rectFj.left), (int) (rectFj.bottom - rectFj.top));
-                            Imgproc.rectangle(img_show, new Point(roi.x, roi.y), new Point(roi.x + roi.width, roi.y + roi.height), new Scalar(255, 0, 0), 2);
-                            Log.i("Rectangle marked as faulty due to overlap with another rectangle:", String.valueOf(j + 1));
-                        }
-                    }
-                }
+        double totalArea = 0;
+        double weightedSumX = 0;
+        double weightedSumY = 0;
+        for (MatOfPoint contour : contours) {
+            Moments moments = Imgproc.moments(contour);
+            double area = moments.get_m00();
+            if (area != 0) {
+                totalArea += area;
+                weightedSumX += moments.get_m10();
+                weightedSumY += moments.get_m01();
             }
+            contour.release();
         }
+        contours.clear();
+
+        if (totalArea == 0) {
+            if (Metrics.TRACE) Log.i("CAD", "No contours with non-zero area found in Rectangle");
+            deviation[i] = Double.NaN;
+            status[i] = STATUS_NO_CONTOURS;
+            return;
+        }
+        double centroidX = weightedSumX / totalArea;
+        double centroidY = weightedSumY / totalArea;
+        double deviationX = ((centroidX - roi.width / 2.0) / roi.width) * 100;
+        double deviationY = ((centroidY - roi.height / 2.0) / roi.height) * 100;
+        double sumOfAbsolutes = Math.abs(deviationX) + Math.abs(deviationY);
+        if (Metrics.TRACE) Log.i("CAD", "Deviation from center in Rectangle " + (i + 1) + ": " + deviationX + "," + deviationY);
+        deviation[i] = sumOfAbsolutes;
+        if (a.score[i] >= BYPASS_SCORE) {
+            sumOfAbsolutes = 1;
+            bypassBox[i] = true;
+        }
+        status[i] = sumOfAbsolutes >= FAULT_DEVIATION ? STATUS_FAULTY : STATUS_VALID;
+    }
 
-        List<Object> output = new ArrayList<>();
-        output.add(correctRectangles.size());
-        output.add(img_show);
-        return output;
+    // The box in integer pixels, clipped to the image
+    private static Rect boxRect(DetectionBatch a, int i, Mat image) {
+        int x0 = Math.max(0, (int) a.left[i]);
+        int y0 = Math.max(0, (int) a.top[i]);
+        int x1 = Math.min(image.cols(), (int) a.left[i] + (int) a.width(i));
+        int y1 = Math.min(image.rows(), (int) a.top[i] + (int) a.height(i));
+        return new Rect(x0, y0, x1 - x0, y1 - y0);
+    }
+
+    private static Mat render(DetectionBatch a, Mat src, int[] status) {
+        Mat img_show = new Mat();
+        if (src.channels() == 1) {
+            Imgproc.cvtColor(src, img_show, Imgproc.COLOR_GRAY2BGR);
+        } else {
+            src.copyTo(img_show);
+        }
+        for (int i = 0; i < a.size(); i++) {
+            if (status[i] == STATUS_NO_CONTOURS) {
+                continue;
+            }
+            Rect roi = boxRect(a, i, src);
+            Scalar color = status[i] == STATUS_FAULTY ? new Scalar(255, 0, 0) : new Scalar(0, 255, 0);
+            Imgproc.rectangle(img_show, new Point(roi.x, roi.y), new Point(roi.x + roi.width, roi.y + roi.height), color, 2);
+        }
+        return img_show;
     }
-}
\ No newline at end of file
+}
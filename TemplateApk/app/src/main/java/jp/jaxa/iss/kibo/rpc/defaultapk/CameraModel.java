@@ -0,0 +1,70 @@
+package jp.jaxa.iss.kibo.rpc.defaultapk;
+
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+// Camera matrix and distortion coefficients of one camera, built once from the API's
+// intrinsics ({3x3 row-major camera matrix, 5 distortion coefficients}) and shared by every capture.
+// Also owns the camera's undistortion maps. They are built on first use for the frame size and
+// reused for the whole mission; each capture only remaps the region it actually needs.
+public class CameraModel {
+    public final Mat cameraMatrix;
+    public final MatOfDouble distCoeffs;
+    // For projecting into the undistorted image, which keeps cameraMatrix as its camera matrix
+    public final MatOfDouble noDistortion = new MatOfDouble();
+
+    // Fixed-point maps (CV_16SC2 + CV_16UC1): half the memory of float maps and faster to remap
+    private Mat map1;
+    private Mat map2;
+    private int mapWidth;
+    private int mapHeight;
+
+    public CameraModel(double[][] cameraIntrinsics) {
+        cameraMatrix = new Mat(3, 3, CvType.CV_64FC1);
+        cameraMatrix.put(0, 0, cameraIntrinsics[0]);
+        distCoeffs = new MatOfDouble(cameraIntrinsics[1]);
+    }
+
+    // Undistorts only roi of the distorted frame into a Mat owned by scope. roi is in
+    // undistorted-image pixels, and pixel (u, v) of the result is undistorted pixel (roi.x + u, roi.y + v).
+    public Mat undistortRegion(Mat image, Rect roi, MatScope scope) {
+        ensureMaps(image.cols(), image.rows());
+        Mat sub1 = scope.track(map1.submat(roi));
+        Mat sub2 = scope.track(map2.submat(roi));
+        Mat out = scope.mat();
+        Imgproc.remap(image, out, sub1, sub2, Imgproc.INTER_LINEAR, Core.BORDER_CONSTANT, new Scalar(0));
+        return out;
+    }
+
+    // Maps distorted pixel coordinates (x0, y0, x1, y1, ...) to undistorted-image pixels in place
+    public void undistortPoints(float[] points) {
+        int n = points.length / 2;
+        MatOfPoint2f distorted = new MatOfPoint2f();
+        MatOfPoint2f undistorted = new MatOfPoint2f();
+        distorted.alloc(n);
+        distorted.put(0, 0, points);
+        Calib3d.undistortPoints(distorted, undistorted, cameraMatrix, distCoeffs, new Mat(), cameraMatrix);
+        undistorted.get(0, 0, points);
+        distorted.release();
+        undistorted.release();
+    }
+
+    private synchronized void ensureMaps(int width, int height) {
+        if (map1 != null && mapWidth == width && mapHeight == height) {
+            return;
+        }
+        map1 = new Mat();
+        map2 = new Mat();
+        Calib3d.initUndistortRectifyMap(cameraMatrix, distCoeffs, new Mat(), cameraMatrix, new Size(width, height), CvType.CV_16SC2, map1, map2);
+        mapWidth = width;
+        mapHeight = height;
+    }
+}
@@ -0,0 +1,208 @@
+package jp.jaxa.iss.kibo.rpc.defaultapk;
+
+import java.util.Arrays;
+
+// Struct-of-arrays holder for the detections of one image. Decoding, NMS and CAD all read and
+// write these primitive arrays in place; class ids are only turned into label strings when the
+// result is reported. Arrays can be replaced when the batch grows, so do not cache them across add().
+public class DetectionBatch {
+    public float[] left;
+    public float[] top;
+    public float[] right;
+    public float[] bottom;
+    public float[] score;
+    public int[] classId;
+    private int size;
+    // Reused by retain() and retainTopK(); they only grow with the batch
+    private float[] scratchFloat;
+    private int[] scratchInt;
+    private int[] order;
+
+    public DetectionBatch(int capacity) {
+        capacity = Math.max(1, capacity);
+        left = new float[capacity];
+        top = new float[capacity];
+        right = new float[capacity];
+        bottom = new float[capacity];
+        score = new float[capacity];
+        classId = new int[capacity];
+        scratchFloat = new float[capacity];
+        scratchInt = new int[capacity];
+        order = new int[capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public int add(int classId, float score, float left, float top, float right, float bottom) {
+        if (size == this.score.length) {
+            grow(size * 2);
+        }
+        this.left[size] = left;
+        this.top[size] = top;
+        this.right[size] = right;
+        this.bottom[size] = bottom;
+        this.score[size] = score;
+        this.classId[size] = classId;
+        return size++;
+    }
+
+    public float width(int i) {
+        return right[i] - left[i];
+    }
+
+    public float height(int i) {
+        return bottom[i] - top[i];
+    }
+
+    // Keeps only the given entries, in the given order (e.g. NMS keep order). One column at a time
+    // goes through a reused scratch array, so indices may be in any order.
+    public void retain(int[] indices, int count) {
+        if (scratchInt.length < count) {
+            scratchFloat = new float[score.length];
+            scratchInt = new int[score.length];
+        }
+        permute(left, indices, count);
+        permute(top, indices, count);
+        permute(right, indices, count);
+        permute(bottom, indices, count);
+        permute(score, indices, count);
+        for (int k = 0; k < count; k++) {
+            scratchInt[k] = classId[indices[k]];
+        }
+        System.arraycopy(scratchInt, 0, classId, 0, count);
+        size = count;
+    }
+
+    // Keeps the k highest-scoring entries, sorted by descending score, ties to the lower index.
+    // A size-k min-heap keeps the best entries seen so far, then heapsort orders them: O(n log k).
+    public void retainTopK(int k) {
+        int keep = Math.min(k, size);
+        if (keep <= 0) {
+            size = 0;
+            return;
+        }
+        if (order.length < keep) {
+            order = new int[Math.max(keep, score.length)];
+        }
+        int[] heap = order;
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (count < keep) {
+                heap[count] = i;
+                siftUp(heap, count++);
+            } else if (worse(heap[0], i)) {
+                heap[0] = i;
+                siftDown(heap, 0, count);
+            }
+        }
+        // Moving the worst to the back each step leaves the heap sorted best first
+        for (int end = count - 1; end > 0; end--) {
+            int worst = heap[0];
+            heap[0] = heap[end];
+            heap[end] = worst;
+            siftDown(heap, 0, end);
+        }
+        retain(heap, keep);
+    }
+
+    // Shifts every box, e.g. from tile or crop coordinates back into the source image
+    public void offset(float dx, float dy) {
+        for (int i = 0; i < size; i++) {
+            left[i] += dx;
+            right[i] += dx;
+            top[i] += dy;
+            bottom[i] += dy;
+        }
+    }
+
+    // Scales every box, e.g. from model input pixels to the source bitmap's pixels
+    public void scale(float sx, float sy) {
+        for (int i = 0; i < size; i++) {
+            left[i] *= sx;
+            right[i] *= sx;
+            top[i] *= sy;
+            bottom[i] *= sy;
+        }
+    }
+
+    public void addAll(DetectionBatch other) {
+        for (int i = 0; i < other.size; i++) {
+            add(other.classId[i], other.score[i], other.left[i], other.top[i], other.right[i], other.bottom[i]);
+        }
+    }
+
+    public void copyFrom(DetectionBatch other) {
+        clear();
+        addAll(other);
+    }
+
+    public int countClass(int id) {
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (classId[i] == id) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void permute(float[] column, int[] indices, int count) {
+        for (int k = 0; k < count; k++) {
+            scratchFloat[k] = column[indices[k]];
+        }
+        System.arraycopy(scratchFloat, 0, column, 0, count);
+    }
+
+    // Whether entry a ranks below entry b
+    private boolean worse(int a, int b) {
+        return score[a] < score[b] || (score[a] == score[b] && a > b);
+    }
+
+    // Min-heap on rank: the root is the worst entry kept so far
+    private void siftUp(int[] heap, int child) {
+        while (child > 0) {
+            int parent = (child - 1) / 2;
+            if (!worse(heap[child], heap[parent])) {
+                return;
+            }
+            int t = heap[child];
+            heap[child] = heap[parent];
+            heap[parent] = t;
+            child = parent;
+        }
+    }
+
+    private void siftDown(int[] heap, int parent, int count) {
+        while (true) {
+            int child = 2 * parent + 1;
+            if (child >= count) {
+                return;
+            }
+            if (child + 1 < count && worse(heap[child + 1], heap[child])) {
+                child++;
+            }
+            if (!worse(heap[child], heap[parent])) {
+                return;
+            }
+            int t = heap[child];
+            heap[child] = heap[parent];
+            heap[parent] = t;
+            parent = child;
+        }
+    }
+
+    private void grow(int capacity) {
+        left = Arrays.copyOf(left, capacity);
+        top = Arrays.copyOf(top, capacity);
+        right = Arrays.copyOf(right, capacity);
+        bottom = Arrays.copyOf(bottom, capacity);
+        score = Arrays.copyOf(score, capacity);
+        classId = Arrays.copyOf(classId, capacity);
+    }
+}
@@ -0,0 +1,26 @@
+package jp.jaxa.iss.kibo.rpc.defaultapk;
+
+import android.graphics.Bitmap;
+
+import java.util.List;
+
+// Common surface of the detection backends. Boxes come back in the input bitmap's pixels, best
+// score first, with class ids indexing getLabels(). Instances are single-threaded sessions.
+public interface Detector {
+
+    DetectionBatch detect(Bitmap bitmap, DetectionBatch out);
+
+    // outs.get(b) receives bitmap b's detections. Backends that cannot batch run them one at a time.
+    void detectBatch(List<Bitmap> bitmaps, List<DetectionBatch> outs);
+
+    List<String> getLabels();
+
+    // Short backend name for logs
+    String getName();
+
+    // Side of the square model input; crops of this size are fed without rescaling
+    int getInputSize();
+
+    // Images detectBatch runs as one invocation; 1 if it runs them one at a time
+    int getMaxBatchSize();
+}
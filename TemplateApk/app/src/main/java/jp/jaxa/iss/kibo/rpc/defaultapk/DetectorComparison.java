@@ -0,0 +1,111 @@
+package jp.jaxa.iss.kibo.rpc.defaultapk;
+
+import android.graphics.Bitmap;
+
+import java.util.Locale;
+
+// Runs two backends side by side on the same crops and keeps running totals of their latency and
+// how often they agree. An image agrees when both report the same most confident item with the
+// same count, which is what the mission reports; boxes match when they share a class and overlap
+// by at least MATCH_IOU. Calls are serialized, since each detector is a single-threaded session.
+public class DetectorComparison {
+    private static final float MATCH_IOU = 0.5f;
+
+    private final Detector primary;
+    private final Detector secondary;
+    private final DetectionBatch primaryOut = new DetectionBatch(16);
+    private final DetectionBatch secondaryOut = new DetectionBatch(16);
+    private boolean[] matched = new boolean[16];
+
+    private int images;
+    private int agreedImages;
+    private long primaryNanos;
+    private long secondaryNanos;
+    private long primaryBoxes;
+    private long secondaryBoxes;
+    private long matchedBoxes;
+
+    public DetectorComparison(Detector primary, Detector secondary) {
+        this.primary = primary;
+        this.secondary = secondary;
+    }
+
+    // Returns whether the two backends agree on this image
+    public synchronized boolean compare(Bitmap bitmap) {
+        long start = System.nanoTime();
+        primary.detect(bitmap, primaryOut);
+        long mid = System.nanoTime();
+        secondary.detect(bitmap, secondaryOut);
+        primaryNanos += mid - start;
+        secondaryNanos += System.nanoTime() - mid;
+
+        images++;
+        primaryBoxes += primaryOut.size();
+        secondaryBoxes += secondaryOut.size();
+        matchedBoxes += matchBoxes(primaryOut, secondaryOut);
+        boolean agreed = sameAnswer(primaryOut, secondaryOut);
+        if (agreed) {
+            agreedImages++;
+        }
+        return agreed;
+    }
+
+    public synchronized String summary() {
+        if (images == 0) {
+            return "no images compared";
+        }
+        long union = primaryBoxes + secondaryBoxes - matchedBoxes;
+        return String.format(Locale.US, "%s vs %s: %d images, mean %.1fms vs %.1fms, answer agreement %d/%d, box match %d/%d (IoU>=%.2f)",
+                primary.getName(), secondary.getName(), images, primaryNanos / 1e6 / images, secondaryNanos / 1e6 / images,
+                agreedImages, images, matchedBoxes, union, MATCH_IOU);
+    }
+
+    // Same top class and the same number of boxes of that class
+    private static boolean sameAnswer(DetectionBatch a, DetectionBatch b) {
+        if (a.size() == 0 || b.size() == 0) {
+            return a.size() == b.size();
+        }
+        int cls = a.classId[0];
+        return b.classId[0] == cls && a.countClass(cls) == b.countClass(cls);
+    }
+
+    // Greedy one-to-one matching in score order; both batches are sorted best first
+    private int matchBoxes(DetectionBatch a, DetectionBatch b) {
+        if (matched.length < b.size()) {
+            matched = new boolean[b.size()];
+        }
+        for (int j = 0; j < b.size(); j++) {
+            matched[j] = false;
+        }
+        int count = 0;
+        for (int i = 0; i < a.size(); i++) {
+            int best = -1;
+            float bestIou = MATCH_IOU;
+            for (int j = 0; j < b.size(); j++) {
+                if (matched[j] || b.classId[j] != a.classId[i]) {
+                    continue;
+                }
+                float iou = iou(a, i, b, j);
+                if (iou >= bestIou) {
+                    bestIou = iou;
+                    best = j;
+                }
+            }
+            if (best >= 0) {
+                matched[best] = true;
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static float iou(DetectionBatch a, int i, DetectionBatch b, int j) {
+        float w = Math.min(a.right[i], b.right[j]) - Math.max(a.left[i], b.left[j]);
+        float h = Math.min(a.bottom[i], b.bottom[j]) - Math.max(a.top[i], b.top[j]);
+        if (w <= 0 || h <= 0) {
+            return 0;
+        }
+        float inter = w * h;
+        return inter / (a.width(i) * a.height(i) + b.width(j) * b.height(j) - inter);
+    }
+}
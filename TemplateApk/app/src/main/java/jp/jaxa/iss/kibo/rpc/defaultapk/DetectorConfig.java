@@ -0,0 +1,52 @@
+package jp.jaxa.iss.kibo.rpc.defaultapk;
+
+import java.io.File;
+
+// Runtime settings shared by the detector backends
+public class DetectorConfig {
+    public enum Backend {
+        // Raw org.tensorflow.lite.Interpreter with our own preprocessing, decode and NMS; can batch
+        INTERPRETER,
+        // Task-library ObjectDetector; preprocessing and postprocessing come from the model metadata
+        TASK
+    }
+
+    public Backend backend = Backend.TASK;
+    // Custom Vision export manifest in assets; the Interpreter backend reads input size and
+    // normalization from the metadata it names. null skips it and uses 0..1 scaling.
+    public String manifestName = "cvexport.manifest";
+    // Check the model file against the manifest's SHA1 before loading it
+    public boolean verifyModelHash = true;
+    // Interpreter threads in total, split across the pool. The robot CPU has 4 cores; leave one for
+    // the mission thread.
+    public int numThreads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    // Detector instances in a DetectorPool, i.e. how many crops can be inferred at the same time
+    public int poolSize = 2;
+    // XNNPACK CPU delegate for the raw Interpreter backend. The Task library always applies it on CPU.
+    public boolean useXnnpack = true;
+    public float scoreThreshold = 0.5f;
+    // IoU above which a same-class box is suppressed. The Task library takes this from the model
+    // metadata instead (CustomVision.Postprocess.Yolo.NmsThreshold, 0.45).
+    public float nmsThreshold = 0.45f;
+    public int maxResults = 10;
+    // Images per batched Interpreter invocation. Above 1, each instance also builds a second
+    // interpreter at this batch size, so single images and batches never resize each other.
+    // Tiling needs room for the whole crop plus its tiles, e.g. 5 for 2 x 2 tiles.
+    public int maxBatchSize = 1;
+    // Run one inference on a blank image at init so the first real frame does not pay for
+    // operator preparation and kernel setup
+    public boolean warmUp = true;
+    // Tiled inference (TiledDetector): crops whose longer side is at least tileMinScale model
+    // inputs are cut into model-sized tiles overlapping by tileOverlap of a tile. 0 disables it.
+    // Only used when the backend can batch (INTERPRETER with maxBatchSize of at least 5).
+    public float tileMinScale = 1.5f;
+    public float tileOverlap = 0.25f;
+    // When set, the Interpreter backend records every raw output tensor here (see ObjectDetector)
+    public File tensorDumpDir;
+
+    // Threads for one instance, rounded down so a fully busy pool stays within numThreads
+    // (at least one each, so a pool larger than numThreads can still exceed it)
+    public int threadsPerInstance() {
+        return Math.max(1, numThreads / Math.max(1, poolSize));
+    }
+}
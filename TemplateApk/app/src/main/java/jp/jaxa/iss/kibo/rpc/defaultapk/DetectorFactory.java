@@ -0,0 +1,45 @@
+package jp.jaxa.iss.kibo.rpc.defaultapk;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.IOException;
+
+// Builds the backend selected in DetectorConfig. If it cannot be created on this device (e.g. the
+// Task library rejects the model's metadata), the other backend is tried before giving up. A model
+// that fails its hash check is not retried, since both backends would load the same file.
+public class DetectorFactory {
+
+    public static Detector create(Context context, String modelName, String labelName, DetectorConfig config) throws IOException {
+        return create(ModelAssets.load(context, modelName, labelName), config);
+    }
+
+    public static Detector create(ModelAssets model, DetectorConfig config) throws IOException {
+        try {
+            return create(config.backend, model, config);
+        } catch (ModelHashMismatchException e) {
+            throw e;
+        } catch (IOException | RuntimeException e) {
+            DetectorConfig.Backend fallback = config.backend == DetectorConfig.Backend.TASK
+                    ? DetectorConfig.Backend.INTERPRETER : DetectorConfig.Backend.TASK;
+            Log.w("DetectorFactory", config.backend + " backend failed to initialize, falling back to " + fallback, e);
+            return create(fallback, model, config);
+        }
+    }
+
+    public static Detector create(DetectorConfig.Backend backend, Context context, String modelName, String labelName, DetectorConfig config) throws IOException {
+        return create(backend, ModelAssets.load(context, modelName, labelName), config);
+    }
+
+    public static Detector create(DetectorConfig.Backend backend, ModelAssets model, DetectorConfig config) throws IOException {
+        if (backend == DetectorConfig.Backend.TASK) {
+            return new YOLOv8Detector(model, config);
+        }
+        return ObjectDetector.create(model, config);
+    }
+
+    // The backend an instance from create() ended up on, so more instances can skip the fallback
+    public static DetectorConfig.Backend backendOf(Detector detector) {
+        return detector instanceof YOLOv8Detector ? DetectorConfig.Backend.TASK : DetectorConfig.Backend.INTERPRETER;
+    }
+}
@@ -0,0 +1,87 @@
+package jp.jaxa.iss.kibo.rpc.defaultapk;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+// A small pool of detector instances over one shared model mapping. A Detector is a
+// single-threaded session, so each concurrent crop (a DockCam frame next to pending NavCam work,
+// burst chunks of different areas) borrows its own instance:
+//
+//     Detector detector = pool.acquire();
+//     try {
+//         detector.detect(bitmap, out);
+//     } finally {
+//         pool.release(detector);
+//     }
+//
+// Each instance has its own interpreter and DetectorConfig.threadsPerInstance() threads.
+// Thread-safe.
+public class DetectorPool {
+    private final BlockingQueue<Detector> idle;
+    private final List<String> labels;
+    private final String name;
+    private final int size;
+    private final int maxCropSize;
+
+    private DetectorPool(BlockingQueue<Detector> idle, List<String> labels, String name, int size, int maxCropSize) {
+        this.idle = idle;
+        this.labels = labels;
+        this.name = name;
+        this.size = size;
+        this.maxCropSize = maxCropSize;
+    }
+
+    // Builds DetectorConfig.poolSize instances. The first picks the backend, falling back if needed,
+    // and the rest use the same one. Crops are tiled when the config enables it and the backend
+    // can run a crop and its tiles as one batched invocation.
+    public static DetectorPool create(ModelAssets model, DetectorConfig config) throws IOException {
+        int size = Math.max(1, config.poolSize);
+        BlockingQueue<Detector> idle = new ArrayBlockingQueue<>(size);
+        Detector first = DetectorFactory.create(model, config);
+        DetectorConfig.Backend backend = DetectorFactory.backendOf(first);
+        Detector wrapped = wrap(first, config);
+        idle.add(wrapped);
+        for (int i = 1; i < size; i++) {
+            idle.add(wrap(DetectorFactory.create(backend, model, config), config));
+        }
+        int maxCropSize = wrapped instanceof TiledDetector ? ((TiledDetector) wrapped).maxCropSize() : wrapped.getInputSize();
+        return new DetectorPool(idle, model.getLabels(), wrapped.getName(), size, maxCropSize);
+    }
+
+    private static Detector wrap(Detector detector, DetectorConfig config) {
+        if (config.tileMinScale <= 0) {
+            return detector;
+        }
+        TiledDetector tiled = new TiledDetector(detector, config);
+        return tiled.canTile() ? tiled : detector;
+    }
+
+    // Blocks until an instance is free
+    public Detector acquire() throws InterruptedException {
+        return idle.take();
+    }
+
+    public void release(Detector detector) {
+        idle.add(detector);
+    }
+
+    public List<String> getLabels() {
+        return labels;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Longest crop side the detectors use at full resolution; larger crops are only scaled down
+    // again, so there is no point making them
+    public int getMaxCropSize() {
+        return maxCropSize;
+    }
+}
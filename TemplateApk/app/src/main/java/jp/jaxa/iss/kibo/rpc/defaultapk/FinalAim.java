@@ -0,0 +1,79 @@
+package jp.jaxa.iss.kibo.rpc.defaultapk;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// Orientation for the final snapshot, worked out before the robot leaves for the target area, so
+// reaching the area and aiming at its item sheet is one moveTo instead of a move and a turn.
+//
+// While patrolling, the marker pose seen from each area's patrol pose is recorded as the item
+// center in NavCam coordinates. solvePnP already used the camera intrinsics and distortion, so
+// that point is metric. Returning to the same patrol point, the robot rotates its body by the yaw
+// and pitch that put the point on the NavCam's optical axis. The NavCam looks along body +x with
+// image right along body +y and image down along body +z, but sits off the body center, which
+// turns with the body. At the patrol standoff that offset is worth several degrees, so the solve
+// aims the camera axis, not the body +x axis, through the item. Thread-safe.
+public class FinalAim {
+    // NavCam position in the body frame (x forward, y right, z down), meters, from the rulebook
+    private static final double[] NAV_CAM_OFFSET = {0.1177, -0.0422, -0.0826};
+
+    private final Map<Integer, double[]> itemCenters = new HashMap<>();
+
+    // Stores where the item center was seen from this area's patrol pose; the latest sighting wins
+    public synchronized void record(int area, ItemAreaWarper.Pose pose) {
+        itemCenters.put(area, ItemAreaWarper.itemCenterInCamera(pose));
+    }
+
+    public synchronized boolean has(int area) {
+        return itemCenters.containsKey(area);
+    }
+
+    // The patrol orientation turned so the NavCam faces the item center, or base unchanged if the
+    // area's marker was never located
+    public gov.nasa.arc.astrobee.types.Quaternion orientationFor(int area, gov.nasa.arc.astrobee.types.Quaternion base) {
+        double[] center;
+        synchronized (this) {
+            center = itemCenters.get(area);
+        }
+        if (center == null) {
+            return base;
+        }
+        float[] angles = aimAngles(toBody(center));
+        if (angles == null) {
+            return base;
+        }
+        // The turn is in the body frame, so it goes on the right of the patrol orientation
+        Quaternion turn = QuaternionUtils.eulerToQuaternion_use(0f, angles[0], angles[1]);
+        Quaternion aimed = new Quaternion(base.getW(), base.getX(), base.getY(), base.getZ()).multiply(turn);
+        return new gov.nasa.arc.astrobee.types.Quaternion(aimed.getX(), aimed.getY(), aimed.getZ(), aimed.getW());
+    }
+
+    // Camera (right, down, forward) to body (forward, right, down), plus the camera's position
+    static double[] toBody(double[] cam) {
+        return new double[]{cam[2] + NAV_CAM_OFFSET[0], cam[0] + NAV_CAM_OFFSET[1], cam[1] + NAV_CAM_OFFSET[2]};
+    }
+
+    // Pitch and yaw in degrees of the body turn R = Rz(yaw) * Ry(pitch) that puts body point p on
+    // the camera axis {offset + t * x}. In the turned body frame the item is q = R^T p, which must
+    // have the offset's y and z and the same length as p. Ry(pitch) is picked to give q the z of p,
+    // then Rz(yaw) lines up x and y. Returns null if the item is closer than the camera's offset.
+    static float[] aimAngles(double[] p) {
+        double cy = NAV_CAM_OFFSET[1];
+        double cz = NAV_CAM_OFFSET[2];
+        double forward2 = p[0] * p[0] + p[1] * p[1] + p[2] * p[2] - cy * cy - cz * cz;
+        if (forward2 <= 0) {
+            return null;
+        }
+        double qx = Math.sqrt(forward2);
+        // Ry(pitch) q has z = cz cos(pitch) - qx sin(pitch), which must equal p[2]
+        double r = Math.hypot(qx, cz);
+        double s = -p[2] / r;
+        if (s < -1 || s > 1) {
+            return null;
+        }
+        double pitch = Math.atan2(cz, qx) + Math.asin(s);
+        double ux = qx * Math.cos(pitch) + cz * Math.sin(pitch);
+        double yaw = Math.atan2(p[1], p[0]) - Math.atan2(cy, ux);
+        return new float[]{(float) Math.toDegrees(pitch), (float) Math.toDegrees(yaw)};
+    }
+}
@@ -0,0 +1,189 @@
+package jp.jaxa.iss.kibo.rpc.defaultapk;
+
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.MatOfPoint3f;
+import org.opencv.core.Point;
+import org.opencv.core.Point3;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+// Turns a located AR marker into a model-ready crop of the item sheet. The marker pose is
+// solved from its corners and the camera intrinsics, and the item area's corners are projected
+// into the undistorted image. Only the region they cover is undistorted (through the camera's
+// cached maps), then one warpPerspective rectifies, crops and resizes it to a square crop.
+//
+// The crop side follows the area's footprint in the image: its longest projected edge, rounded up
+// to SIZE_STEP so the MatPool sees few shapes, and clamped to [minOutputSize, maxOutputSize]. A
+// distant area is upscaled to the model input; a close one keeps its resolution up to the largest
+// crop the detector can tile (DetectorPool.getMaxCropSize()), so small items are not shrunk here.
+public class ItemAreaWarper {
+    // AR tag side length, in meters
+    private static final double MARKER_LENGTH = 0.05;
+    // Item area relative to the marker center, in the marker plane (x right, y up, meters).
+    // The area is square so the warp does not change the items' aspect ratio.
+    // Measured from the rulebook sheet drawing; fine-tune in the simulator.
+    private static final double ITEM_AREA_CENTER_X = -0.135;
+    private static final double ITEM_AREA_CENTER_Y = 0.0;
+    private static final double ITEM_AREA_SIDE = 0.20;
+    private static final int SIZE_STEP = 64;
+
+    private final int minOutputSize;
+    private final MatOfPoint3f markerObjectPoints;
+    private final MatOfPoint3f itemObjectPoints;
+    private final MatOfPoint2f outputCorners = new MatOfPoint2f();
+
+    // Scratch, reused between calls
+    private final MatOfPoint2f markerImagePoints = new MatOfPoint2f();
+    private final MatOfPoint2f itemImagePoints = new MatOfPoint2f();
+    private final float[] projected = new float[8];
+
+    // Marker pose in the camera frame, as returned by solvePnP
+    public static class Pose {
+        public final double[] rvec;
+        public final double[] tvec;
+
+        Pose(double[] rvec, double[] tvec) {
+            this.rvec = rvec;
+            this.tvec = tvec;
+        }
+    }
+
+    public ItemAreaWarper(int minOutputSize) {
+        this.minOutputSize = minOutputSize;
+        double h = MARKER_LENGTH / 2;
+        // Same corner order as ArUco: top-left, top-right, bottom-right, bottom-left
+        markerObjectPoints = new MatOfPoint3f(
+                new Point3(-h, h, 0), new Point3(h, h, 0), new Point3(h, -h, 0), new Point3(-h, -h, 0));
+        double s = ITEM_AREA_SIDE / 2;
+        double cx = ITEM_AREA_CENTER_X;
+        double cy = ITEM_AREA_CENTER_Y;
+        itemObjectPoints = new MatOfPoint3f(
+                new Point3(cx - s, cy + s, 0), new Point3(cx + s, cy + s, 0), new Point3(cx + s, cy - s, 0), new Point3(cx - s, cy - s, 0));
+    }
+
+    // Crop side for an area whose corners project to q, in undistorted image pixels
+    private int outputSizeFor(float[] q, int maxOutputSize) {
+        double longest = 0;
+        for (int k = 0; k < 4; k++) {
+            int a = 2 * k, b = 2 * ((k + 1) % 4);
+            longest = Math.max(longest, Math.hypot(q[b] - q[a], q[b + 1] - q[a + 1]));
+        }
+        int size = (int) Math.ceil(longest / SIZE_STEP) * SIZE_STEP;
+        return Math.max(minOutputSize, Math.min(maxOutputSize, size));
+    }
+
+    // Solves the marker pose, or returns null if the marker is behind the camera or degenerate
+    public synchronized Pose estimatePose(MarkerLocator.Marker marker, CameraModel camera) {
+        markerImagePoints.alloc(4);
+        markerImagePoints.put(0, 0, marker.corners);
+        Mat rvec = new Mat();
+        Mat tvec = new Mat();
+        try {
+            if (!Calib3d.solvePnP(markerObjectPoints, markerImagePoints, camera.cameraMatrix, camera.distCoeffs, rvec, tvec, false, Calib3d.SOLVEPNP_IPPE_SQUARE)) {
+                return null;
+            }
+            double[] r = new double[3];
+            double[] t = new double[3];
+            rvec.get(0, 0, r);
+            tvec.get(0, 0, t);
+            return t[2] > 0 ? new Pose(r, t) : null;
+        } finally {
+            rvec.release();
+            tvec.release();
+        }
+    }
+
+    // Center of the item area in the camera frame (x right, y down, z forward, meters):
+    // R(rvec) * center + tvec, with R from the Rodrigues formula
+    public static double[] itemCenterInCamera(Pose pose) {
+        double[] r = pose.rvec;
+        double theta = Math.sqrt(r[0] * r[0] + r[1] * r[1] + r[2] * r[2]);
+        double px = ITEM_AREA_CENTER_X, py = ITEM_AREA_CENTER_Y, pz = 0;
+        double x = px, y = py, z = pz;
+        if (theta > 1e-12) {
+            double kx = r[0] / theta, ky = r[1] / theta, kz = r[2] / theta;
+            double c = Math.cos(theta), s = Math.sin(theta);
+            double dot = kx * px + ky * py + kz * pz;
+            x = px * c + (ky * pz - kz * py) * s + kx * dot * (1 - c);
+            y = py * c + (kz * px - kx * pz) * s + ky * dot * (1 - c);
+            z = pz * c + (kx * py - ky * px) * s + kz * dot * (1 - c);
+        }
+        return new double[]{x + pose.tvec[0], y + pose.tvec[1], z + pose.tvec[2]};
+    }
+
+    // Warps the item area seen from pose into a square Mat (see outputSizeFor) with the image's
+    // channel layout, pooled in scope. Returns null if the projected area is not a usable quadrilateral.
+    public synchronized Mat warp(Mat image, Pose pose, CameraModel camera, int maxOutputSize, MatScope scope) {
+        Mat rvec = scope.track(new Mat(3, 1, CvType.CV_64FC1));
+        Mat tvec = scope.track(new Mat(3, 1, CvType.CV_64FC1));
+        rvec.put(0, 0, pose.rvec);
+        tvec.put(0, 0, pose.tvec);
+        // Pinhole projection: coordinates in the undistorted image, where a plane maps by a homography
+        Calib3d.projectPoints(itemObjectPoints, rvec, tvec, camera.cameraMatrix, camera.noDistortion, itemImagePoints);
+
+        itemImagePoints.get(0, 0, projected);
+        if (!isConvex(projected)) {
+            return null;
+        }
+        int outputSize = outputSizeFor(projected, maxOutputSize);
+        Rect roi = boundingRect(projected, image.cols(), image.rows());
+        if (roi.width <= 1 || roi.height <= 1) {
+            return null;
+        }
+        for (int k = 0; k < 8; k += 2) {
+            projected[k] -= roi.x;
+            projected[k + 1] -= roi.y;
+        }
+        itemImagePoints.put(0, 0, projected);
+
+        Mat region = camera.undistortRegion(image, roi, scope);
+        outputCorners.fromArray(new Point(0, 0), new Point(outputSize, 0), new Point(outputSize, outputSize), new Point(0, outputSize));
+        Mat transform = scope.track(Imgproc.getPerspectiveTransform(itemImagePoints, outputCorners));
+        Mat out = scope.acquire(outputSize, outputSize, image.type());
+        Imgproc.warpPerspective(region, out, transform, new Size(outputSize, outputSize), Imgproc.INTER_LINEAR, Core.BORDER_CONSTANT, new Scalar(0));
+        // The region and warp temporaries are done; only out lives on with the scope
+        scope.release(region);
+        scope.release(transform);
+        return out;
+    }
+
+    // Integer rectangle covering the points, clipped to the frame
+    private static Rect boundingRect(float[] q, int width, int height) {
+        float minX = q[0], minY = q[1], maxX = q[0], maxY = q[1];
+        for (int k = 2; k < 8; k += 2) {
+            minX = Math.min(minX, q[k]);
+            maxX = Math.max(maxX, q[k]);
+            minY = Math.min(minY, q[k + 1]);
+            maxY = Math.max(maxY, q[k + 1]);
+        }
+        int x0 = Math.max(0, (int) Math.floor(minX));
+        int y0 = Math.max(0, (int) Math.floor(minY));
+        int x1 = Math.min(width, (int) Math.ceil(maxX) + 1);
+        int y1 = Math.min(height, (int) Math.ceil(maxY) + 1);
+        return new Rect(x0, y0, Math.max(0, x1 - x0), Math.max(0, y1 - y0));
+    }
+
+    // A projected square stays a convex quadrilateral with consistent winding unless the pose is bad
+    private static boolean isConvex(float[] q) {
+        int sign = 0;
+        for (int k = 0; k < 4; k++) {
+            int a = 2 * k, b = 2 * ((k + 1) % 4), c = 2 * ((k + 2) % 4);
+            float cross = (q[b] - q[a]) * (q[c + 1] - q[b + 1]) - (q[b + 1] - q[a + 1]) * (q[c] - q[b]);
+            if (Float.isNaN(cross) || cross == 0) {
+                return false;
+            }
+            int s = cross > 0 ? 1 : -1;
+            if (sign != 0 && s != sign) {
+                return false;
+            }
+            sign = s;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,137 @@
+package jp.jaxa.iss.kibo.rpc.defaultapk;
+
+import org.opencv.aruco.Aruco;
+import org.opencv.aruco.DetectorParameters;
+import org.opencv.aruco.Dictionary;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Finds the AR marker of an area without running detectMarkers over the full camera frame:
+//   1. If the area was seen before, search a window around its last marker at full resolution.
+//   2. Otherwise find candidates on a downscaled frame, then re-detect at full resolution inside
+//      the candidate ROI with sub-pixel corner refinement.
+//   3. Only if both miss, fall back to a full-resolution search of the whole frame.
+// The dictionary, detector parameters and scratch Mats are created once and reused.
+public class MarkerLocator {
+    private static final double COARSE_SCALE = 0.5;
+    // Search window around a marker, as a multiple of the marker's size on each side
+    private static final double ROI_MARGIN = 1.0;
+    private static final int MIN_ROI_MARGIN_PX = 32;
+
+    private final Dictionary dictionary;
+    private final DetectorParameters coarseParameters;
+    private final DetectorParameters refineParameters;
+    private final Map<Integer, Rect> lastMarkerRoi = new HashMap<>();
+
+    private final Mat coarse = new Mat();
+    private final Mat ids = new Mat();
+    private final List<Mat> corners = new ArrayList<>();
+
+    // Marker corners in full-frame pixels, x0, y0, ... x3, y3 in ArUco order (TL, TR, BR, BL)
+    public static class Marker {
+        public final int id;
+        public final float[] corners;
+
+        Marker(int id, float[] corners) {
+            this.id = id;
+            this.corners = corners;
+        }
+
+        public Rect boundingRect() {
+            float minX = corners[0], minY = corners[1], maxX = corners[0], maxY = corners[1];
+            for (int k = 2; k < 8; k += 2) {
+                minX = Math.min(minX, corners[k]);
+                maxX = Math.max(maxX, corners[k]);
+                minY = Math.min(minY, corners[k + 1]);
+                maxY = Math.max(maxY, corners[k + 1]);
+            }
+            int x = (int) Math.floor(minX);
+            int y = (int) Math.floor(minY);
+            return new Rect(x, y, (int) Math.ceil(maxX) - x + 1, (int) Math.ceil(maxY) - y + 1);
+        }
+    }
+
+    public MarkerLocator() {
+        dictionary = Aruco.getPredefinedDictionary(Aruco.DICT_5X5_250);
+        coarseParameters = DetectorParameters.create();
+        coarseParameters.set_cornerRefinementMethod(Aruco.CORNER_REFINE_NONE);
+        refineParameters = DetectorParameters.create();
+        refineParameters.set_cornerRefinementMethod(Aruco.CORNER_REFINE_SUBPIX);
+    }
+
+    // Returns the first marker found in image, or null. areaKey selects the remembered ROI.
+    public synchronized Marker locate(Mat image, int areaKey) {
+        Rect last = lastMarkerRoi.get(areaKey);
+        Marker marker = null;
+        if (last != null) {
+            marker = detectIn(image, expand(last, image), refineParameters);
+        }
+        if (marker == null) {
+            marker = coarseToFine(image);
+        }
+        if (marker == null) {
+            marker = detectIn(image, new Rect(0, 0, image.cols(), image.rows()), refineParameters);
+        }
+        if (marker != null) {
+            lastMarkerRoi.put(areaKey, marker.boundingRect());
+        }
+        return marker;
+    }
+
+    private Marker coarseToFine(Mat image) {
+        Imgproc.resize(image, coarse, new Size(), COARSE_SCALE, COARSE_SCALE, Imgproc.INTER_AREA);
+        Marker candidate = detectIn(coarse, new Rect(0, 0, coarse.cols(), coarse.rows()), coarseParameters);
+        if (candidate == null) {
+            return null;
+        }
+        for (int k = 0; k < 8; k++) {
+            candidate.corners[k] /= COARSE_SCALE;
+        }
+        return detectIn(image, expand(candidate.boundingRect(), image), refineParameters);
+    }
+
+    // Runs detectMarkers inside roi and returns the first marker in full-frame coordinates
+    private Marker detectIn(Mat image, Rect roi, DetectorParameters parameters) {
+        if (roi.width <= 0 || roi.height <= 0) {
+            return null;
+        }
+        Mat window = image.submat(roi);
+        releaseCorners();
+        Aruco.detectMarkers(window, dictionary, corners, ids, parameters);
+        window.release();
+        if (ids.empty() || corners.isEmpty()) {
+            return null;
+        }
+        float[] points = new float[8];
+        corners.get(0).get(0, 0, points);
+        for (int k = 0; k < 8; k += 2) {
+            points[k] += roi.x;
+            points[k + 1] += roi.y;
+        }
+        return new Marker((int) ids.get(0, 0)[0], points);
+    }
+
+    private static Rect expand(Rect r, Mat image) {
+        int marginX = Math.max(MIN_ROI_MARGIN_PX, (int) (r.width * ROI_MARGIN));
+        int marginY = Math.max(MIN_ROI_MARGIN_PX, (int) (r.height * ROI_MARGIN));
+        int x0 = Math.max(0, r.x - marginX);
+        int y0 = Math.max(0, r.y - marginY);
+        int x1 = Math.min(image.cols(), r.x + r.width + marginX);
+        int y1 = Math.min(image.rows(), r.y + r.height + marginY);
+        return new Rect(x0, y0, x1 - x0, y1 - y0);
+    }
+
+    private void releaseCorners() {
+        for (Mat c : corners) {
+            c.release();
+        }
+        corners.clear();
+    }
+}
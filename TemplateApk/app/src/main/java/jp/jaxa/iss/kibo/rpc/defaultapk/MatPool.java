@@ -0,0 +1,64 @@
+package jp.jaxa.iss.kibo.rpc.defaultapk;
+
+import org.opencv.core.Mat;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+// Pool of native Mats keyed by rows, cols and type. Fixed-size buffers (model-sized crops, gray
+// frames) are handed back here when a MatScope closes and reused by the next capture instead of
+// being left for the finalizer. Thread-safe; at most MAX_PER_SHAPE idle Mats are kept per shape.
+public class MatPool {
+    private static final int MAX_PER_SHAPE = 4;
+
+    private final Map<Long, ArrayDeque<Mat>> idle = new HashMap<>();
+    private int idleCount;
+
+    public synchronized Mat acquire(int rows, int cols, int type) {
+        ArrayDeque<Mat> free = idle.get(key(rows, cols, type));
+        Mat m = free == null ? null : free.poll();
+        if (m == null) {
+            return new Mat(rows, cols, type);
+        }
+        idleCount--;
+        Metrics.set(Metrics.Gauge.POOLED_MATS, idleCount);
+        return m;
+    }
+
+    // Takes m back for reuse, or releases it if its shape is full or it no longer has its shape
+    public synchronized void recycle(Mat m, int rows, int cols, int type) {
+        if (m.rows() != rows || m.cols() != cols || m.type() != type) {
+            m.release();
+            return;
+        }
+        long key = key(rows, cols, type);
+        ArrayDeque<Mat> free = idle.get(key);
+        if (free == null) {
+            free = new ArrayDeque<>();
+            idle.put(key, free);
+        }
+        if (free.size() >= MAX_PER_SHAPE) {
+            m.release();
+            return;
+        }
+        free.push(m);
+        idleCount++;
+        Metrics.set(Metrics.Gauge.POOLED_MATS, idleCount);
+    }
+
+    public synchronized void clear() {
+        for (ArrayDeque<Mat> free : idle.values()) {
+            for (Mat m : free) {
+                m.release();
+            }
+        }
+        idle.clear();
+        idleCount = 0;
+        Metrics.set(Metrics.Gauge.POOLED_MATS, 0);
+    }
+
+    private static long key(int rows, int cols, int type) {
+        return ((long) rows << 40) | ((long) cols << 16) | (type & 0xFFFF);
+    }
+}
@@ -0,0 +1,107 @@
+package jp.jaxa.iss.kibo.rpc.defaultapk;
+
+import org.opencv.core.Mat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Owns the native Mats of one capture or processing step. Everything acquired or tracked through
+// the scope is released, or handed back to its pool, when the scope closes:
+//
+//     try (MatScope scope = new MatScope(pool)) {
+//         Mat gray = scope.acquire(rows, cols, CvType.CV_8UC1);
+//         Mat tmp = scope.track(new Mat());
+//         ...
+//         return scope.detach(result); // caller now owns result
+//     }
+//
+// A scope belongs to the thread that opened it.
+public class MatScope implements AutoCloseable {
+    private final MatPool pool;
+    private final List<Mat> tracked = new ArrayList<>();
+    // Pooled Mats and the shape they were handed out with, in parallel lists
+    private final List<Mat> pooled = new ArrayList<>();
+    private final List<int[]> pooledShapes = new ArrayList<>();
+
+    public MatScope(MatPool pool) {
+        this.pool = pool;
+    }
+
+    // A reusable rows x cols Mat of type, returned to the pool on close
+    public Mat acquire(int rows, int cols, int type) {
+        Mat m = pool.acquire(rows, cols, type);
+        pooled.add(m);
+        pooledShapes.add(new int[]{rows, cols, type});
+        return m;
+    }
+
+    // Releases m on close; null is passed through so results of fallible calls can be tracked directly
+    public <T extends Mat> T track(T m) {
+        if (m != null) {
+            tracked.add(m);
+        }
+        return m;
+    }
+
+    public Mat mat() {
+        return track(new Mat());
+    }
+
+    // Hands m back now instead of at close, for buffers that are done before the step is
+    public void release(Mat m) {
+        if (recyclePooled(m)) {
+            return;
+        }
+        for (int i = 0; i < tracked.size(); i++) {
+            if (tracked.get(i) == m) {
+                tracked.remove(i);
+                m.release();
+                return;
+            }
+        }
+    }
+
+    // Stops managing m so it outlives the scope; the caller becomes responsible for it
+    public <T extends Mat> T detach(T m) {
+        for (int i = 0; i < tracked.size(); i++) {
+            if (tracked.get(i) == m) {
+                tracked.remove(i);
+                return m;
+            }
+        }
+        for (int i = 0; i < pooled.size(); i++) {
+            if (pooled.get(i) == m) {
+                pooled.remove(i);
+                pooledShapes.remove(i);
+                return m;
+            }
+        }
+        return m;
+    }
+
+    @Override
+    public void close() {
+        for (Mat m : tracked) {
+            m.release();
+        }
+        tracked.clear();
+        for (int i = 0; i < pooled.size(); i++) {
+            int[] shape = pooledShapes.get(i);
+            pool.recycle(pooled.get(i), shape[0], shape[1], shape[2]);
+        }
+        pooled.clear();
+        pooledShapes.clear();
+    }
+
+    private boolean recyclePooled(Mat m) {
+        for (int i = 0; i < pooled.size(); i++) {
+            if (pooled.get(i) == m) {
+                int[] shape = pooledShapes.remove(i);
+                pooled.remove(i);
+                pool.recycle(m, shape[0], shape[1], shape[2]);
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,154 @@
+package jp.jaxa.iss.kibo.rpc.defaultapk;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// In-process metrics for the vision and motion pipeline: per-stage latency histograms, counters
+// and gauges. Recording only touches preallocated atomic arrays, so it is safe to call from the
+// hot path and from any thread. summary() is meant to be logged once, at mission end.
+//
+//     long start = Metrics.start();
+//     ...
+//     Metrics.record(Metrics.Stage.NMS, start);
+public final class Metrics {
+
+    // Compile-time gate for per-box / per-pair logging inside inner loops. With false, javac drops
+    // the guarded Log calls entirely, string building included.
+    public static final boolean TRACE = false;
+
+    public enum Stage { CAPTURE, AR_DETECT, CROP, PREPROCESS, INFERENCE, DECODE, NMS, TILE_MERGE, CAD, MOVE }
+
+    public enum Counter { FRAMES, AR_MISSES, DETECTIONS_DECODED, DETECTIONS_KEPT, CAD_BOXES, CAD_FAULTY, CAD_OVERLAP_PAIRS, MOVE_RETRIES, MOVE_WAYPOINTS, MOVE_NUDGES, MOVE_FAILURES }
+
+    public enum Gauge { LAST_DETECTION_COUNT, LAST_CROP_WIDTH, LAST_CROP_HEIGHT, POOLED_MATS }
+
+    // Upper bucket bounds in microseconds; the last bucket catches everything slower
+    private static final long[] BUCKET_BOUNDS_US = {
+            100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000, 100000, 250000, 500000, 1000000, 2500000, 5000000, 10000000
+    };
+    private static final int BUCKETS = BUCKET_BOUNDS_US.length + 1;
+
+    // values() clones its array on every call, so the enums are cached once
+    private static final Stage[] STAGES = Stage.values();
+    private static final Counter[] COUNTERS = Counter.values();
+    private static final Gauge[] GAUGES = Gauge.values();
+
+    private static final AtomicLongArray histogram = new AtomicLongArray(STAGES.length * BUCKETS);
+    private static final AtomicLongArray stageCount = new AtomicLongArray(STAGES.length);
+    private static final AtomicLongArray stageTotalNanos = new AtomicLongArray(STAGES.length);
+    private static final AtomicLongArray stageMaxNanos = new AtomicLongArray(STAGES.length);
+    private static final AtomicLongArray counters = new AtomicLongArray(COUNTERS.length);
+    private static final AtomicLongArray gauges = new AtomicLongArray(GAUGES.length);
+
+    private Metrics() {
+    }
+
+    public static long start() {
+        return System.nanoTime();
+    }
+
+    // Records the time since startNanos (from start()) against a stage and returns it
+    public static long record(Stage stage, long startNanos) {
+        long elapsed = System.nanoTime() - startNanos;
+        recordNanos(stage, elapsed);
+        return elapsed;
+    }
+
+    public static void recordNanos(Stage stage, long nanos) {
+        int s = stage.ordinal();
+        long micros = nanos / 1000;
+        int bucket = 0;
+        while (bucket < BUCKET_BOUNDS_US.length && micros > BUCKET_BOUNDS_US[bucket]) {
+            bucket++;
+        }
+        histogram.incrementAndGet(s * BUCKETS + bucket);
+        stageCount.incrementAndGet(s);
+        stageTotalNanos.addAndGet(s, nanos);
+        long max;
+        do {
+            max = stageMaxNanos.get(s);
+        } while (nanos > max && !stageMaxNanos.compareAndSet(s, max, nanos));
+    }
+
+    public static void increment(Counter counter) {
+        counters.incrementAndGet(counter.ordinal());
+    }
+
+    public static void add(Counter counter, long delta) {
+        counters.addAndGet(counter.ordinal(), delta);
+    }
+
+    public static long get(Counter counter) {
+        return counters.get(counter.ordinal());
+    }
+
+    public static void set(Gauge gauge, long value) {
+        gauges.set(gauge.ordinal(), value);
+    }
+
+    public static long get(Gauge gauge) {
+        return gauges.get(gauge.ordinal());
+    }
+
+    public static long count(Stage stage) {
+        return stageCount.get(stage.ordinal());
+    }
+
+    // Approximate percentile in milliseconds, reported as the upper bound of the bucket it falls in
+    public static double percentileMillis(Stage stage, double percentile) {
+        int s = stage.ordinal();
+        long total = stageCount.get(s);
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * percentile / 100.0);
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += histogram.get(s * BUCKETS + b);
+            if (seen >= rank) {
+                return b < BUCKET_BOUNDS_US.length ? BUCKET_BOUNDS_US[b] / 1000.0 : stageMaxNanos.get(s) / 1e6;
+            }
+        }
+        return stageMaxNanos.get(s) / 1e6;
+    }
+
+    public static void reset() {
+        for (int i = 0; i < histogram.length(); i++) {
+            histogram.set(i, 0);
+        }
+        for (int s = 0; s < STAGES.length; s++) {
+            stageCount.set(s, 0);
+            stageTotalNanos.set(s, 0);
+            stageMaxNanos.set(s, 0);
+        }
+        for (int c = 0; c < COUNTERS.length; c++) {
+            counters.set(c, 0);
+        }
+        for (int g = 0; g < GAUGES.length; g++) {
+            gauges.set(g, 0);
+        }
+    }
+
+    // One line per stage that ran, then counters and gauges
+    public static String summary() {
+        StringBuilder sb = new StringBuilder();
+        for (Stage stage : STAGES) {
+            int s = stage.ordinal();
+            long n = stageCount.get(s);
+            if (n == 0) {
+                continue;
+            }
+            sb.append(String.format(Locale.US, "%-10s n=%d mean=%.2fms p50<=%.2fms p95<=%.2fms max=%.2fms total=%.1fms%n",
+                    stage, n, stageTotalNanos.get(s) / 1e6 / n, percentileMillis(stage, 50), percentileMillis(stage, 95),
+                    stageMaxNanos.get(s) / 1e6, stageTotalNanos.get(s) / 1e6));
+        }
+        for (Counter counter : COUNTERS) {
+            sb.append(counter).append('=').append(counters.get(counter.ordinal())).append(' ');
+        }
+        sb.append(String.format("%n"));
+        for (Gauge gauge : GAUGES) {
+            sb.append(gauge).append('=').append(gauges.get(gauge.ordinal())).append(' ');
+        }
+        return sb.toString();
+    }
+}
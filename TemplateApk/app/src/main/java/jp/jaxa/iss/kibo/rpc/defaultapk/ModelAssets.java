@@ -0,0 +1,68 @@
+package jp.jaxa.iss.kibo.rpc.defaultapk;
+
+import android.content.Context;
+import android.content.res.AssetManager;
+
+import org.tensorflow.lite.Interpreter;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.util.Collections;
+import java.util.List;
+
+// The read-only parts of a model that every detector instance can share: the memory-mapped model
+// file, the labels and the export metadata. Interpreters only read the mapped buffer, so a pool of
+// detectors costs one mapping instead of one model copy per instance.
+public class ModelAssets {
+    private final AssetManager assets;
+    private final String modelName;
+    private final MappedByteBuffer model;
+    private final List<String> labels;
+    private ModelConfig modelConfig;
+    private int inputSize;
+
+    private ModelAssets(AssetManager assets, String modelName, MappedByteBuffer model, List<String> labels) {
+        this.assets = assets;
+        this.modelName = modelName;
+        this.model = model;
+        this.labels = Collections.unmodifiableList(labels);
+    }
+
+    public static ModelAssets load(Context context, String modelName, String labelName) throws IOException {
+        AssetManager assets = context.getAssets();
+        return new ModelAssets(assets, modelName, ObjectDetector.loadModelFile(assets, modelName),
+                ObjectDetector.loadLabelList(assets, labelName));
+    }
+
+    // The same mapping for every caller; instances must not change its position or contents
+    public MappedByteBuffer getModel() {
+        return model;
+    }
+
+    public List<String> getLabels() {
+        return labels;
+    }
+
+    // Side of the model's square input, from its input tensor [1][height][width][3]. Backends that
+    // hide the tensor (the Task library) get it from a short-lived interpreter, once per model.
+    public synchronized int getInputSize() {
+        if (inputSize == 0) {
+            try (Interpreter probe = new Interpreter(model, new Interpreter.Options().setNumThreads(1))) {
+                inputSize = probe.getInputTensor(0).shape()[1];
+            }
+        }
+        return inputSize;
+    }
+
+    // Reads the export metadata and checks the model hash on first use; later calls reuse the result
+    public synchronized ModelConfig getModelConfig(DetectorConfig config) throws IOException {
+        if (modelConfig == null) {
+            ModelConfig loaded = config.manifestName != null ? ModelConfig.load(assets, config.manifestName) : ModelConfig.defaults();
+            if (config.verifyModelHash) {
+                loaded.verifyModel(assets, modelName);
+            }
+            modelConfig = loaded;
+        }
+        return modelConfig;
+    }
+}
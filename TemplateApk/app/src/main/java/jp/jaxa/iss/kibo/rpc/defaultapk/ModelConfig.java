@@ -0,0 +1,145 @@
+package jp.jaxa.iss.kibo.rpc.defaultapk;
+
+import android.content.res.AssetManager;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+
+// Preprocessing settings of the exported model, read from the Custom Vision export next to it:
+// cvexport.manifest names the model, label and metadata files and carries the model's SHA1, and
+// metadata_properties.json holds the input size and normalization. A channel value v in 0..255 is
+// fed to the model as (v * pixelScale - mean[c]) / std[c], with pixelScale 1/255 for
+// Normalized_0_1 and 1 for a 0..255 range.
+public class ModelConfig {
+    private static final String TAG = "ModelConfig";
+    private static final String PREFIX = "CustomVision.Preprocess.";
+
+    public final int targetWidth;
+    public final int targetHeight;
+    // Per channel, in R, G, B order
+    public final float[] mean;
+    public final float[] std;
+    public final float pixelScale;
+    // Expected SHA1 of the model file, lower-case hex, or null when there is no manifest
+    public final String modelSha1;
+
+    ModelConfig(int targetWidth, int targetHeight, float[] mean, float[] std, float pixelScale, String modelSha1) {
+        this.targetWidth = targetWidth;
+        this.targetHeight = targetHeight;
+        this.mean = mean;
+        this.std = std;
+        this.pixelScale = pixelScale;
+        this.modelSha1 = modelSha1;
+    }
+
+    // What the detector assumed before the metadata was read: 0..255 scaled to 0..1, input size
+    // taken from the model's tensor (0)
+    public static ModelConfig defaults() {
+        return new ModelConfig(0, 0, new float[]{0f, 0f, 0f}, new float[]{1f, 1f, 1f}, 1f / 255f, null);
+    }
+
+    // Reads the manifest and the metadata it names. A missing manifest means an export without one,
+    // and the defaults are used; a manifest that is present but malformed is an error.
+    public static ModelConfig load(AssetManager assets, String manifestName) throws IOException {
+        try {
+            JSONObject manifest;
+            try {
+                manifest = readJson(assets, manifestName);
+            } catch (FileNotFoundException e) {
+                Log.w(TAG, "No " + manifestName + " in assets, using default preprocessing");
+                return defaults();
+            }
+            String sha1 = manifest.optString("ModelFileSHA1", null);
+            JSONObject metadata = readJson(assets, manifest.optString("MetadataPropsFileName", "metadata_properties.json"));
+            float[] mean = parseTriple(metadata.optString(PREFIX + "NormalizeMean", "[0, 0, 0]"));
+            float[] std = parseTriple(metadata.optString(PREFIX + "NormalizeStd", "[1, 1, 1]"));
+            int width = Integer.parseInt(metadata.optString(PREFIX + "TargetWidth", "0"));
+            int height = Integer.parseInt(metadata.optString(PREFIX + "TargetHeight", "0"));
+            String range = metadata.optString("Image.NominalPixelRange", "Normalized_0_1");
+            float pixelScale = range.equals("Normalized_0_1") ? 1f / 255f : 1f;
+            if (!range.equals("Normalized_0_1") && !range.equals("NominalRange_0_255")) {
+                Log.w(TAG, "Unknown pixel range " + range + ", feeding 0..255");
+            }
+            return new ModelConfig(width, height, mean, std, pixelScale, sha1 != null ? sha1.toLowerCase(Locale.US) : null);
+        } catch (JSONException | NumberFormatException e) {
+            throw new IOException("Malformed model metadata in " + manifestName, e);
+        }
+    }
+
+    // Hashes the model asset and compares it with the manifest, so a model swapped without its
+    // metadata is caught at init rather than as silently wrong detections. A mismatch throws
+    // ModelHashMismatchException; failing to read the file is a plain IOException.
+    public void verifyModel(AssetManager assets, String modelName) throws IOException {
+        if (modelSha1 == null) {
+            return;
+        }
+        String actual = sha1(assets, modelName);
+        if (!actual.equals(modelSha1)) {
+            throw new ModelHashMismatchException(modelName + " has SHA1 " + actual + " but the manifest expects " + modelSha1);
+        }
+    }
+
+    // Float input value for each 0..255 channel value, one table per channel
+    public float[][] buildLookupTables() {
+        float[][] lut = new float[3][256];
+        for (int c = 0; c < 3; c++) {
+            for (int v = 0; v < 256; v++) {
+                lut[c][v] = (v * pixelScale - mean[c]) / std[c];
+            }
+        }
+        return lut;
+    }
+
+    private static JSONObject readJson(AssetManager assets, String name) throws IOException, JSONException {
+        try (InputStream in = assets.open(name)) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                bytes.write(buffer, 0, read);
+            }
+            return new JSONObject(new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+        }
+    }
+
+    // The metadata stores arrays as strings, e.g. "[0.0, 0.0, 0.0]"
+    private static float[] parseTriple(String value) throws JSONException {
+        JSONArray array = new JSONArray(value);
+        if (array.length() != 3) {
+            throw new JSONException("Expected 3 channels, got " + value);
+        }
+        return new float[]{(float) array.getDouble(0), (float) array.getDouble(1), (float) array.getDouble(2)};
+    }
+
+    private static String sha1(AssetManager assets, String name) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-1 unavailable", e);
+        }
+        try (InputStream in = assets.open(name)) {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format(Locale.US, "%02x", b & 0xFF));
+        }
+        return hex.toString();
+    }
+}
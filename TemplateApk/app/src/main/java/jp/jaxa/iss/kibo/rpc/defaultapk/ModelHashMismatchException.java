@@ -0,0 +1,11 @@
+package jp.jaxa.iss.kibo.rpc.defaultapk;
+
+import java.io.IOException;
+
+// The model file does not match the SHA1 in its export manifest. Every backend would load the same
+// wrong file, so DetectorFactory never falls back on this; detector init fails instead.
+public class ModelHashMismatchException extends IOException {
+    public ModelHashMismatchException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,167 @@
+package jp.jaxa.iss.kibo.rpc.defaultapk;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Locale;
+
+import gov.nasa.arc.astrobee.Kinematics;
+import gov.nasa.arc.astrobee.Result;
+import gov.nasa.arc.astrobee.types.Point;
+import gov.nasa.arc.astrobee.types.Quaternion;
+import jp.jaxa.iss.kibo.rpc.api.KiboRpcApi;
+
+// Runs one leg with moveTo and recovers from failed attempts instead of repeating the same
+// command. A failure is usually the planner rejecting a goal or a path that grazes a keep-out zone
+// edge, and the identical command fails the same way. So after the first attempt each retry
+// changes the request, in a fixed order:
+//
+//     attempt 1     the goal as given
+//     attempt 2, 3  via a waypoint beside the leg: its midpoint moved waypointOffsetMeters to one
+//                   side and then the other, perpendicular to the leg and horizontal where it can
+//                   be, so the path bends around whatever rejected the straight one
+//     attempt 4..   the goal shifted by nudgeMeters along +x, -x, +y, -y, +z, -z in turn
+//
+// The orientation is never perturbed, since the camera has to face the target. No new attempt
+// starts once the leg has used its time budget. Every attempt is timed, and the MoveResult reports
+// how far the robot ended up from the requested goal and whether it was a nudged goal.
+public class MotionExecutor {
+    private static final String TAG = "MotionExecutor";
+    private static final double[][] NUDGE_DIRECTIONS = {
+            {1, 0, 0}, {-1, 0, 0}, {0, 1, 0}, {0, -1, 0}, {0, 0, 1}, {0, 0, -1}
+    };
+
+    private final KiboRpcApi api;
+    private final int maxAttempts;
+    private final long timeBudgetMs;
+    private final double waypointOffsetMeters;
+    private final double nudgeMeters;
+
+    public MotionExecutor(KiboRpcApi api, int maxAttempts, long timeBudgetMs, double waypointOffsetMeters, double nudgeMeters) {
+        this.api = api;
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.timeBudgetMs = timeBudgetMs;
+        this.waypointOffsetMeters = waypointOffsetMeters;
+        this.nudgeMeters = nudgeMeters;
+    }
+
+    public static class MoveResult {
+        public final boolean succeeded;
+        public final int attempts;
+        public final long elapsedMs;
+        // Distance from the requested goal to where the robot ended up, meters; NaN if unknown
+        public final double finalError;
+        // The successful attempt went to a nudged goal, up to nudgeMeters from the requested one
+        public final boolean goalPerturbed;
+
+        MoveResult(boolean succeeded, int attempts, long elapsedMs, double finalError, boolean goalPerturbed) {
+            this.succeeded = succeeded;
+            this.attempts = attempts;
+            this.elapsedMs = elapsedMs;
+            this.finalError = finalError;
+            this.goalPerturbed = goalPerturbed;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s%s after %d attempt(s) in %dms, error %.3fm",
+                    succeeded ? "reached" : "failed", goalPerturbed ? " (nudged goal)" : "", attempts, elapsedMs, finalError);
+        }
+    }
+
+    public MoveResult move(Point goal, Quaternion orientation) {
+        long legStart = SystemClock.elapsedRealtime();
+        long start = Metrics.start();
+        boolean succeeded = false;
+        boolean perturbed = false;
+        int attempts = 0;
+        while (attempts < maxAttempts) {
+            if (attempts > 0 && SystemClock.elapsedRealtime() - legStart >= timeBudgetMs) {
+                Log.w(TAG, "Time budget of " + timeBudgetMs + "ms used up after " + attempts + " attempt(s)");
+                break;
+            }
+            long attemptStart = SystemClock.elapsedRealtime();
+            String kind;
+            Result result;
+            if (attempts == 0) {
+                kind = "direct";
+                result = api.moveTo(goal, orientation, true);
+            } else if (attempts <= 2) {
+                double side = attempts == 1 ? 1 : -1;
+                kind = attempts == 1 ? "waypoint +side" : "waypoint -side";
+                result = moveViaWaypoint(goal, orientation, side * waypointOffsetMeters);
+            } else {
+                double[] direction = NUDGE_DIRECTIONS[(attempts - 3) % NUDGE_DIRECTIONS.length];
+                perturbed = true;
+                kind = String.format(Locale.US, "nudged (%+.0f, %+.0f, %+.0f)", direction[0], direction[1], direction[2]);
+                Metrics.increment(Metrics.Counter.MOVE_NUDGES);
+                result = api.moveTo(new Point(goal.getX() + direction[0] * nudgeMeters,
+                        goal.getY() + direction[1] * nudgeMeters, goal.getZ() + direction[2] * nudgeMeters), orientation, true);
+            }
+            attempts++;
+            succeeded = result != null && result.hasSucceeded();
+            if (succeeded) {
+                break;
+            }
+            perturbed = false;
+            Log.w(TAG, String.format(Locale.US, "Attempt %d (%s) to %s failed after %dms: %s", attempts, kind, goal,
+                    SystemClock.elapsedRealtime() - attemptStart, result == null ? "no result" : result.getMessage()));
+        }
+        Metrics.record(Metrics.Stage.MOVE, start);
+        Metrics.add(Metrics.Counter.MOVE_RETRIES, attempts - 1);
+        if (!succeeded) {
+            Metrics.increment(Metrics.Counter.MOVE_FAILURES);
+        }
+        return new MoveResult(succeeded, attempts, SystemClock.elapsedRealtime() - legStart, distanceFrom(goal), succeeded && perturbed);
+    }
+
+    // Splits the leg at a waypoint offset meters beside its midpoint, at the goal orientation, so
+    // neither half follows the straight path that failed. Returns the first failing result, or the
+    // result of the final move.
+    private Result moveViaWaypoint(Point goal, Quaternion orientation, double offset) {
+        Metrics.increment(Metrics.Counter.MOVE_WAYPOINTS);
+        Kinematics kinematics = api.getRobotKinematics();
+        if (kinematics != null && kinematics.getPosition() != null) {
+            Point here = kinematics.getPosition();
+            double[] side = sideOf(goal.getX() - here.getX(), goal.getY() - here.getY(), goal.getZ() - here.getZ());
+            Point waypoint = new Point((here.getX() + goal.getX()) / 2 + side[0] * offset,
+                    (here.getY() + goal.getY()) / 2 + side[1] * offset, (here.getZ() + goal.getZ()) / 2 + side[2] * offset);
+            Result result = api.moveTo(waypoint, orientation, true);
+            if (result == null || !result.hasSucceeded()) {
+                return result;
+            }
+        }
+        return api.moveTo(goal, orientation, true);
+    }
+
+    // Unit vector perpendicular to the leg (dx, dy, dz): leg x up, which is horizontal, unless the
+    // leg is nearly vertical, then leg x forward
+    private static double[] sideOf(double dx, double dy, double dz) {
+        // Cross product with (0, 0, 1)
+        double sx = dy, sy = -dx, sz = 0;
+        double norm = Math.sqrt(sx * sx + sy * sy);
+        if (norm < 1e-3 * Math.sqrt(dx * dx + dy * dy + dz * dz) || norm == 0) {
+            // Cross product with (1, 0, 0)
+            sx = 0;
+            sy = dz;
+            sz = -dy;
+            norm = Math.sqrt(sy * sy + sz * sz);
+            if (norm == 0) {
+                return new double[]{0, 1, 0};
+            }
+        }
+        return new double[]{sx / norm, sy / norm, sz / norm};
+    }
+
+    private double distanceFrom(Point goal) {
+        Kinematics kinematics = api.getRobotKinematics();
+        if (kinematics == null || kinematics.getPosition() == null) {
+            return Double.NaN;
+        }
+        Point here = kinematics.getPosition();
+        double dx = here.getX() - goal.getX();
+        double dy = here.getY() - goal.getY();
+        double dz = here.getZ() - goal.getZ();
+        return Math.sqrt(dx * dx + dy * dy + dz * dz);
+    }
+}
@@ -1,97 +1,247 @@
 package jp.jaxa.iss.kibo.rpc.defaultapk;
 
-import android.graphics.RectF;
-import android.util.Log;
-
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
 public class NonMaxSuppression {
-    private static boolean isNearEdge(RectF rect, float imageWidth, float imageHeight, float margin_in_per) {
+    public static final int METHOD_HARD = 0;
+    public static final int METHOD_LINEAR = 1;
+    public static final int METHOD_GAUSSIAN = 2;
+
+    private static boolean isNearEdge(DetectionBatch boxes, int i, float imageWidth, float imageHeight, float margin_in_per) {
         float margin_width = (margin_in_per/100)*imageWidth;
         float margin_height = (margin_in_per/100)*imageHeight;
-        return rect.left < margin_width || rect.top < margin_height || rect.right > imageWidth - margin_width || rect.bottom > imageHeight - margin_height;
+        return boxes.left[i] < margin_width || boxes.top[i] < margin_height || boxes.right[i] > imageWidth - margin_width || boxes.bottom[i] > imageHeight - margin_height;
     }
 
-    public static List<BoundingBoxWithScore> softNonMaxSuppression(List<BoundingBoxWithScore> boxes, float sigma, float Nt, float threshold, float imageWidth, float imageHeight, float margin, int method) {
-        List<BoundingBoxWithScore> D = new ArrayList<>();
-        for (BoundingBoxWithScore box : boxes) {
-            if (isNearEdge(box.getRect(), imageWidth, imageHeight, margin)) {
-                if(box.getScore() > 0.5) {
-                    D.add(box);
+    // In-place Soft-NMS over a detection batch: low-confidence boxes near the image edge are dropped,
+    // scores are decayed, and the batch is left holding the survivors in descending score order.
+    // Boxes are sorted once, only boxes that share a grid cell are IoU-tested, and perClass limits
+    // suppression to boxes of the same class id. Processing order is by descending current score,
+    // exactly like the original selection-sort version, apart from how exact ties are ordered.
+    public static void softNonMaxSuppression(DetectionBatch boxes, float sigma, float Nt, float threshold, float imageWidth, float imageHeight, float margin, int method, boolean perClass) {
+        int[] indices = new int[boxes.size()];
+        int N = 0;
+        for (int i = 0; i < boxes.size(); i++) {
+            if (isNearEdge(boxes, i, imageWidth, imageHeight, margin)) {
+                if(boxes.score[i] > 0.5) {
+                    indices[N++] = i;
                 }
             }
             else {
-                D.add(box);
+                indices[N++] = i;
             }
         }
+        boxes.retain(indices, N);
+
+        int keptCount = suppress(boxes.left, boxes.top, boxes.right, boxes.bottom, boxes.score, perClass ? boxes.classId : null, N, sigma, Nt, threshold, method, indices);
+        boxes.retain(indices, keptCount);
+    }
 
-        int N = D.size();
+    // Core engine over flat arrays. Scores are decayed in place and the indices that survive the
+    // threshold are written to kept in descending score order. Returns the number kept.
+    // category may be null to let every class suppress every other.
+    static int suppress(float[] left, float[] top, float[] right, float[] bottom, float[] score, int[] category, int n, float sigma, float Nt, float threshold, int method, int[] kept) {
+        float[] area = new float[n];
+        for (int i = 0; i < n; i++) {
+            area[i] = (right[i] - left[i]) * (bottom[i] - top[i]);
+        }
 
-        for (int i = 0; i < N; i++) {
-            // Find the box with the maximum score
-            int maxpos = i;
-            float maxscore = D.get(i).getScore();
-            for (int j = i + 1; j < N; j++) {
-                if (D.get(j).getScore() > maxscore) {
-                    maxscore = D.get(j).getScore();
-                    maxpos = j;
+        // Sort once. A descending array is already a valid max-heap, so the soft variants can keep
+        // re-selecting the highest current score with decrease-key instead of rescanning.
+        int[] heap = sortByScoreDescending(score, n);
+        int[] heapPos = new int[n];
+        for (int k = 0; k < n; k++) {
+            heapPos[heap[k]] = k;
+        }
+        int heapSize = n;
+
+        boolean[] done = new boolean[n];
+        int[] visited = new int[n];
+        Arrays.fill(visited, -1);
+        BoxGrid grid = new BoxGrid(left, top, right, bottom, n);
+        int keptCount = 0;
+
+        while (heapSize > 0) {
+            int pivot = heap[0];
+            // Scores only ever decrease, so once the best remaining box is at or below the threshold
+            // every remaining box would be filtered out anyway.
+            if (!(score[pivot] > threshold)) {
+                break;
+            }
+            heapSize = popMax(heap, heapPos, heapSize, score);
+            done[pivot] = true;
+            kept[keptCount++] = pivot;
+
+            for (int c = grid.firstCell(left[pivot], top[pivot], right[pivot], bottom[pivot]); c >= 0; c = grid.nextCell()) {
+                for (int e = grid.cellStart[c]; e < grid.cellStart[c + 1]; e++) {
+                    int j = grid.cellBoxes[e];
+                    if (done[j] || visited[j] == pivot || (category != null && category[j] != category[pivot])) {
+                        continue;
+                    }
+                    visited[j] = pivot;
+                    float iou = iou(left, top, right, bottom, area, pivot, j);
+
+                    // Apply Soft-NMS
+                    float weight;
+                    if (method == METHOD_LINEAR) {
+                        weight = iou > Nt ? 1 - iou : 1;
+                    } else if (method == METHOD_GAUSSIAN) {
+                        weight = (float) Math.exp(-(iou * iou) / sigma);
+                    } else {  // original NMS
+                        weight = iou > Nt ? 0 : 1;
+                    }
+                    if (weight != 1) {
+                        score[j] = score[j] * weight;
+                        siftDown(heap, heapPos, heapPos[j], heapSize, score);
+                    }
                 }
             }
+        }
+        return keptCount;
+    }
 
-            // Swap
-            BoundingBoxWithScore temp = D.get(i);
-            D.set(i, D.get(maxpos));
-            D.set(maxpos, temp);
-
-            // IoU calculation
-            RectF maxBox = D.get(i).getRect();
-            for (int j = i + 1; j < N; j++) {
-                RectF box = D.get(j).getRect();
-                float iou = iou(maxBox, box);
-
-                // Apply Soft-NMS
-                float weight;
-                if (method == 1) {  // linear
-                    weight = iou > Nt ? 1 - iou : 1;
-                } else if (method == 2) {  // gaussian
-                    weight = (float) Math.exp(-(iou * iou) / sigma);
-                } else {  // original NMS
-                    weight = iou > Nt ? 0 : 1;
-                }
+    private static float iou(float[] left, float[] top, float[] right, float[] bottom, float[] area, int a, int b) {
+        float intersectionLeft = Math.max(left[a], left[b]);
+        float intersectionTop = Math.max(top[a], top[b]);
+        float intersectionRight = Math.min(right[a], right[b]);
+        float intersectionBottom = Math.min(bottom[a], bottom[b]);
 
-                D.get(j).setScore(D.get(j).getScore() * weight);
-            }
+        float intersectionWidth = Math.max(0, intersectionRight - intersectionLeft);
+        float intersectionHeight = Math.max(0, intersectionBottom - intersectionTop);
+
+        float intersectionArea = intersectionWidth * intersectionHeight;
+        float unionArea = area[a] + area[b] - intersectionArea;
+        return intersectionArea / unionArea;
+    }
+
+    // Indices sorted by descending score, ties by ascending index, via one primitive long sort
+    private static int[] sortByScoreDescending(float[] score, int n) {
+        long[] keys = new long[n];
+        for (int i = 0; i < n; i++) {
+            int bits = Float.floatToIntBits(score[i]);
+            bits ^= (bits >> 31) & 0x7FFFFFFF; // Make negative floats order correctly as signed ints
+            keys[i] = ((long) bits << 32) | (~i & 0xFFFFFFFFL);
         }
+        Arrays.sort(keys);
+        int[] order = new int[n];
+        for (int k = 0; k < n; k++) {
+            order[k] = ~(int) keys[n - 1 - k];
+        }
+        return order;
+    }
+
+    private static boolean higher(float[] score, int a, int b) {
+        return score[a] > score[b] || (score[a] == score[b] && a < b);
+    }
+
+    private static int popMax(int[] heap, int[] heapPos, int heapSize, float[] score) {
+        heapSize--;
+        heap[0] = heap[heapSize];
+        heapPos[heap[0]] = 0;
+        siftDown(heap, heapPos, 0, heapSize, score);
+        return heapSize;
+    }
 
-        // Filter out boxes with score below threshold
-        List<BoundingBoxWithScore> result = new ArrayList<>();
-        for (BoundingBoxWithScore box : D) {
-            if (box.getScore() > threshold) {
-                Log.i("Score","confident_score after NMS :"+box.getScore());
-                result.add(box);
+    private static void siftDown(int[] heap, int[] heapPos, int pos, int heapSize, float[] score) {
+        int item = heap[pos];
+        while (true) {
+            int child = 2 * pos + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (child + 1 < heapSize && higher(score, heap[child + 1], heap[child])) {
+                child++;
+            }
+            if (!higher(score, heap[child], item)) {
+                break;
             }
+            heap[pos] = heap[child];
+            heapPos[heap[pos]] = pos;
+            pos = child;
         }
-
-        return result;
+        heap[pos] = item;
+        heapPos[item] = pos;
     }
 
+    // Uniform grid over the boxes' extent. Every box is registered in each cell it covers, so two
+    // boxes can only overlap if they share a cell. Cells are sized from the mean box size.
+    private static class BoxGrid {
+        private static final int MAX_CELLS_PER_AXIS = 32;
+
+        final int[] cellStart;
+        final int[] cellBoxes;
+        private float originX, originY, cellSize;
+        private int cols, rows;
+        private int queryCol0, queryCol1, queryRow1, queryCol, queryRow;
+
+        BoxGrid(float[] left, float[] top, float[] right, float[] bottom, int n) {
+            float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+            double sizeSum = 0;
+            for (int i = 0; i < n; i++) {
+                minX = Math.min(minX, left[i]);
+                minY = Math.min(minY, top[i]);
+                maxX = Math.max(maxX, right[i]);
+                maxY = Math.max(maxY, bottom[i]);
+                sizeSum += Math.max(right[i] - left[i], bottom[i] - top[i]);
+            }
+            if (n == 0) {
+                minX = minY = maxX = maxY = 0;
+            }
+            originX = minX;
+            originY = minY;
+            float extent = Math.max(maxX - minX, maxY - minY);
+            cellSize = Math.max(n == 0 ? 1f : (float) (sizeSum / n), extent / MAX_CELLS_PER_AXIS);
+            if (!(cellSize > 0)) {
+                cellSize = 1f;
+            }
+            cols = Math.min(MAX_CELLS_PER_AXIS, (int) ((maxX - minX) / cellSize) + 1);
+            rows = Math.min(MAX_CELLS_PER_AXIS, (int) ((maxY - minY) / cellSize) + 1);
+
+            // Counting pass then fill pass, so the whole index is two flat arrays
+            cellStart = new int[cols * rows + 1];
+            for (int i = 0; i < n; i++) {
+                for (int c = firstCell(left[i], top[i], right[i], bottom[i]); c >= 0; c = nextCell()) {
+                    cellStart[c + 1]++;
+                }
+            }
+            for (int c = 0; c < cols * rows; c++) {
+                cellStart[c + 1] += cellStart[c];
+            }
+            cellBoxes = new int[cellStart[cols * rows]];
+            int[] fill = Arrays.copyOf(cellStart, cols * rows);
+            for (int i = 0; i < n; i++) {
+                for (int c = firstCell(left[i], top[i], right[i], bottom[i]); c >= 0; c = nextCell()) {
+                    cellBoxes[fill[c]++] = i;
+                }
+            }
+        }
 
-    private static float iou(RectF a, RectF b) {
-        float intersectionLeft = Math.max(a.left, b.left);
-        float intersectionTop = Math.max(a.top, b.top);
-        float intersectionRight = Math.min(a.right, b.right);
-        float intersectionBottom = Math.min(a.bottom, b.bottom);
+        private int column(float x) {
+            return Math.max(0, Math.min(cols - 1, (int) ((x - originX) / cellSize)));
+        }
 
-        float intersectionWidth = Math.max(0, intersectionRight - intersectionLeft);
-        float intersectionHeight = Math.max(0, intersectionBottom - intersectionTop);
+        private int row(float y) {
+            return Math.max(0, Math.min(rows - 1, (int) ((y - originY) / cellSize)));
+        }
 
-        float intersectionArea = intersectionWidth * intersectionHeight;
-        float areaA = a.width() * a.height();
-        float areaB = b.width() * b.height();
-        float unionArea = areaA + areaB - intersectionArea;
-        Log.i("IOU", "IOU_threshold: " + (intersectionArea / unionArea));
+        // Starts iterating the cells covered by a rectangle; returns -1 when there are none left
+        int firstCell(float l, float t, float r, float b) {
+            queryCol0 = column(l);
+            queryCol1 = column(r);
+            queryRow1 = row(b);
+            queryCol = queryCol0;
+            queryRow = row(t);
+            return queryRow * cols + queryCol;
+        }
 
-        return intersectionArea / unionArea;
+        int nextCell() {
+            if (++queryCol > queryCol1) {
+                queryCol = queryCol0;
+                if (++queryRow > queryRow1) {
+                    return -1;
+                }
+            }
+            return queryRow * cols + queryCol;
+        }
     }
-}
\ No newline at end of file
+}
@@ -4,62 +4,210 @@ import android.content.Context;
 import android.content.res.AssetFileDescriptor;
 import android.content.res.AssetManager;
 import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.util.Log;
+import org.tensorflow.lite.DataType;
 import org.tensorflow.lite.Interpreter;
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.PriorityQueue;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
 
 // This class will handle all TensorFlow Lite model operations.
-public class ObjectDetector {
+// Every buffer detect() needs is allocated once in create(), sized from the interpreter's
+// tensor shapes, so an instance is a single-threaded session: use one instance per thread.
+public class ObjectDetector implements Detector {
 
     private Interpreter interpreter;
     private List<String> labelList;
     private int INPUT_SIZE;
     private int PIXEL_SIZE = 3; // For RGB
-    private int IMAGE_MEAN = 0;
-    private float IMAGE_STD = 255.0f;
+    // Input value per 0..255 value of R, G and B, built from the model metadata (see ModelConfig)
+    private float[][] channelLut;
+    // uint8 models take the raw pixel bytes and need no table
+    private boolean quantizedInput;
+    // From DetectorConfig, shared with the Task-library backend
+    private int MAX_RESULTS;
+    private float CONFIDENCE_THRESHOLD;
+    private float NMS_THRESHOLD;
 
-    // A helper class to store detection results
-    public static class DetectionResult {
-        public final String label;
-        public final float score;
-        public final android.graphics.RectF boundingBox;
+    // Reusable per-call buffers
+    private ByteBuffer inputBuffer;
+    private int[] intValues;
+    private Bitmap scaledBitmap;
+    private Canvas scaledCanvas;
+    private final Rect scaledRect = new Rect();
+    private final Paint scalePaint = new Paint(); // No filtering, same as createScaledBitmap(..., false)
+    private ByteBuffer outputBuffer;
+    private FloatBuffer outputFloats;
+    private YoloOutputDecoder decoder;
+    // Second interpreter fixed at maxBatchSize images for detectBatch, with its own buffers, or null
+    // when batching is off or the model has a fixed batch dimension. Neither interpreter is resized
+    // after create(), so changing chunk sizes never reallocates tensors or buffers.
+    private Interpreter batchInterpreter;
+    private int maxBatchSize = 1;
+    private ByteBuffer batchInputBuffer;
+    private ByteBuffer batchOutputBuffer;
+    private FloatBuffer batchOutputFloats;
+    // When set, every raw output tensor is written here for the off-device replay runner
+    private File tensorDumpDir;
+    // Shared by every instance so pooled detectors never write the same file name
+    private static final AtomicInteger tensorDumpCount = new AtomicInteger();
 
-        public DetectionResult(String label, float score, android.graphics.RectF boundingBox) {
-            this.label = label;
-            this.score = score;
-            this.boundingBox = boundingBox;
-        }
+    public static ObjectDetector create(Context context, final String modelPath, final String labelPath, DetectorConfig config) throws IOException {
+        return create(ModelAssets.load(context, modelPath, labelPath), config);
     }
 
-    public static ObjectDetector create(Context context, final String modelPath, final String labelPath, int inputSize) throws IOException {
+    // A new interpreter over the shared model mapping, with its own buffers and thread setting
+    public static ObjectDetector create(ModelAssets model, DetectorConfig config) throws IOException {
+        ModelConfig modelConfig = model.getModelConfig(config);
         ObjectDetector objectDetector = new ObjectDetector();
-        objectDetector.interpreter = new Interpreter(objectDetector.loadModelFile(context.getAssets(), modelPath));
-        objectDetector.labelList = objectDetector.loadLabelList(context.getAssets(), labelPath);
-        objectDetector.INPUT_SIZE = inputSize;
+        Interpreter.Options options = new Interpreter.Options()
+                .setNumThreads(config.threadsPerInstance())
+                .setUseXNNPACK(config.useXnnpack);
+        objectDetector.interpreter = new Interpreter(model.getModel(), options);
+        objectDetector.labelList = model.getLabels();
+        objectDetector.MAX_RESULTS = config.maxResults;
+        objectDetector.CONFIDENCE_THRESHOLD = config.scoreThreshold;
+        objectDetector.NMS_THRESHOLD = config.nmsThreshold;
+        objectDetector.allocateBuffers(modelConfig);
+        if (config.maxBatchSize > 1) {
+            objectDetector.createBatchInterpreter(model, options, config.maxBatchSize);
+        }
+        if (config.tensorDumpDir != null) {
+            objectDetector.setTensorDumpDir(config.tensorDumpDir);
+        }
+        if (config.warmUp) {
+            objectDetector.warmUp();
+        }
         return objectDetector;
     }
 
-    // Loads the TFLite model from the assets folder.
-    private MappedByteBuffer loadModelFile(AssetManager assetManager, String modelPath) throws IOException {
+    // One inference on the zeroed input buffer so operator preparation happens at init, not in area 1
+    private void warmUp() {
+        inputBuffer.rewind();
+        outputBuffer.rewind();
+        interpreter.run(inputBuffer, outputBuffer);
+    }
+
+    // Sizes the input and output buffers from the model itself instead of assuming 8400 anchors.
+    // The metadata's target size wins over the tensor shape when the model accepts a resize.
+    private void allocateBuffers(ModelConfig modelConfig) {
+        int[] inputShape = interpreter.getInputTensor(0).shape(); // [1][height][width][3]
+        if (modelConfig.targetWidth > 0 && modelConfig.targetWidth != inputShape[1]) {
+            if (modelConfig.targetWidth != modelConfig.targetHeight) {
+                Log.w("ObjectDetector", "Non-square target size " + modelConfig.targetWidth + "x" + modelConfig.targetHeight + ", keeping the model's " + inputShape[1]);
+            } else {
+                try {
+                    interpreter.resizeInput(0, new int[]{1, modelConfig.targetHeight, modelConfig.targetWidth, PIXEL_SIZE});
+                    interpreter.allocateTensors();
+                    inputShape = interpreter.getInputTensor(0).shape();
+                } catch (IllegalArgumentException | IllegalStateException e) {
+                    Log.w("ObjectDetector", "Model does not accept the metadata's " + modelConfig.targetWidth + " input, keeping " + inputShape[1], e);
+                }
+            }
+        }
+        INPUT_SIZE = inputShape[1];
+        quantizedInput = interpreter.getInputTensor(0).dataType() == DataType.UINT8;
+        channelLut = modelConfig.buildLookupTables();
+        intValues = new int[INPUT_SIZE * INPUT_SIZE];
+        scaledBitmap = Bitmap.createBitmap(INPUT_SIZE, INPUT_SIZE, Bitmap.Config.ARGB_8888);
+        scaledCanvas = new Canvas(scaledBitmap);
+        scaledRect.set(0, 0, INPUT_SIZE, INPUT_SIZE);
+        decoder = YoloOutputDecoder.forShape(interpreter.getOutputTensor(0).shape(), labelList.size());
+        allocateTensorBuffers();
+    }
+
+    private void allocateTensorBuffers() {
+        inputBuffer = ByteBuffer.allocateDirect(interpreter.getInputTensor(0).numBytes());
+        inputBuffer.order(ByteOrder.nativeOrder());
+        // The output stays in the model's native layout and is decoded in place
+        outputBuffer = ByteBuffer.allocateDirect(interpreter.getOutputTensor(0).numBytes());
+        outputBuffer.order(ByteOrder.nativeOrder());
+        outputFloats = outputBuffer.asFloatBuffer();
+    }
+
+    // Builds the batch interpreter over the same model mapping. Exports with a hard-coded batch of 1
+    // reject the resize, in which case detectBatch runs images one at a time.
+    private void createBatchInterpreter(ModelAssets model, Interpreter.Options options, int n) {
+        Interpreter batch = new Interpreter(model.getModel(), options);
+        try {
+            batch.resizeInput(0, new int[]{n, INPUT_SIZE, INPUT_SIZE, PIXEL_SIZE});
+            batch.allocateTensors();
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            Log.w("ObjectDetector", "Model does not accept a batch of " + n + ", running images one at a time", e);
+            batch.close();
+            return;
+        }
+        batchInterpreter = batch;
+        maxBatchSize = n;
+        batchInputBuffer = ByteBuffer.allocateDirect(batch.getInputTensor(0).numBytes());
+        batchInputBuffer.order(ByteOrder.nativeOrder());
+        batchOutputBuffer = ByteBuffer.allocateDirect(batch.getOutputTensor(0).numBytes());
+        batchOutputBuffer.order(ByteOrder.nativeOrder());
+        batchOutputFloats = batchOutputBuffer.asFloatBuffer();
+    }
+
+    // Memory-maps the TFLite model straight out of the APK, without copying it.
+    // Needs the asset to be stored uncompressed (aaptOptions noCompress "tflite").
+    static MappedByteBuffer loadModelFile(AssetManager assetManager, String modelPath) throws IOException {
         AssetFileDescriptor fileDescriptor = assetManager.openFd(modelPath);
-        FileInputStream inputStream = new FileInputStream(fileDescriptor.getFileDescriptor());
-        FileChannel fileChannel = inputStream.getChannel();
-        long startOffset = fileDescriptor.getStartOffset();
-        long declaredLength = fileDescriptor.getDeclaredLength();
-        return fileChannel.map(FileChannel.MapMode.READ_ONLY, startOffset, declaredLength);
+        try (FileInputStream inputStream = new FileInputStream(fileDescriptor.getFileDescriptor())) {
+            FileChannel fileChannel = inputStream.getChannel();
+            long startOffset = fileDescriptor.getStartOffset();
+            long declaredLength = fileDescriptor.getDeclaredLength();
+            // The mapping stays valid after the stream and descriptor are closed
+            return fileChannel.map(FileChannel.MapMode.READ_ONLY, startOffset, declaredLength);
+        } finally {
+            fileDescriptor.close();
+        }
+    }
+
+    @Override
+    public List<String> getLabels() {
+        return labelList;
+    }
+
+    @Override
+    public String getName() {
+        return "interpreter";
+    }
+
+    @Override
+    public int getInputSize() {
+        return INPUT_SIZE;
+    }
+
+    @Override
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    // Records each image's raw output tensor as little-endian float32 in dir, named
+    // tensor_<n>_<shape>.bin (e.g. tensor_0001_1x15x5376.bin), for vision_bench's ReplayRunner
+    public void setTensorDumpDir(File dir) {
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            Log.w("ObjectDetector", "Cannot create tensor dump directory " + dir);
+            return;
+        }
+        tensorDumpDir = dir;
     }
 
     // Loads the labels from the assets folder.
-    private List<String> loadLabelList(AssetManager assetManager, String labelPath) throws IOException {
+    static List<String> loadLabelList(AssetManager assetManager, String labelPath) throws IOException {
         List<String> labelList = new ArrayList<>();
         BufferedReader reader = new BufferedReader(new InputStreamReader(assetManager.open(labelPath)));
         String line;
@@ -70,98 +218,132 @@ public class ObjectDetector {
         return labelList;
     }
 
-    // Main detection method
-    public List<DetectionResult> detect(Bitmap bitmap) {
-        Bitmap resizedBitmap = Bitmap.createScaledBitmap(bitmap, INPUT_SIZE, INPUT_SIZE, false);
-        ByteBuffer byteBuffer = convertBitmapToByteBuffer(resizedBitmap);
+    // Main detection method. Boxes are written to out in the bitmap's pixels, best score first.
+    @Override
+    public DetectionBatch detect(Bitmap bitmap, DetectionBatch out) {
+        long start = Metrics.start();
+        inputBuffer.rewind();
+        convertBitmapToByteBuffer(bitmap, inputBuffer);
+        inputBuffer.rewind();
+        outputBuffer.rewind();
+        Metrics.record(Metrics.Stage.PREPROCESS, start);
+        start = Metrics.start();
+        interpreter.run(inputBuffer, outputBuffer);
+        Metrics.record(Metrics.Stage.INFERENCE, start);
 
-        // Output format for YOLOv8 is typically [1][84][8400]
-        // Bounding box, class scores
-        // We need to transpose this to [1][8400][84]
-        Object[] inputArray = {byteBuffer};
-        float[][][] output = new float[1][8400][labelList.size() + 4]; // [batch][predictions][box+classes]
-
-        java.util.Map<Integer, Object> outputMap = new java.util.HashMap<>();
-        outputMap.put(0, output);
+        // Process the output and apply Non-Max Suppression
+        out.clear();
+        processOutput(outputFloats, 0, out);
+        toBitmapPixels(out, bitmap);
+        return out;
+    }
 
-        interpreter.runForMultipleInputsOutputs(inputArray, outputMap);
+    // Runs the bitmaps through the batch interpreter, maxBatchSize at a time; outs.get(b) receives
+    // image b's detections. A short last chunk fills only the first slots and the rest are not
+    // decoded; a chunk of one, or a model that cannot be batched, goes through detect().
+    @Override
+    public void detectBatch(List<Bitmap> bitmaps, List<DetectionBatch> outs) {
+        int n = bitmaps.size();
+        for (int first = 0; first < n; first += maxBatchSize) {
+            int count = Math.min(maxBatchSize, n - first);
+            if (batchInterpreter == null || count == 1) {
+                for (int b = first; b < first + count; b++) {
+                    detect(bitmaps.get(b), outs.get(b));
+                }
+                continue;
+            }
+            long start = Metrics.start();
+            batchInputBuffer.rewind();
+            for (int b = first; b < first + count; b++) {
+                convertBitmapToByteBuffer(bitmaps.get(b), batchInputBuffer);
+            }
+            batchInputBuffer.rewind();
+            batchOutputBuffer.rewind();
+            Metrics.record(Metrics.Stage.PREPROCESS, start);
+            start = Metrics.start();
+            batchInterpreter.run(batchInputBuffer, batchOutputBuffer);
+            Metrics.record(Metrics.Stage.INFERENCE, start);
 
-        // Process the output and apply Non-Max Suppression
-        return processOutput(output[0]);
-    }
-
-    private ByteBuffer convertBitmapToByteBuffer(Bitmap bitmap) {
-        ByteBuffer byteBuffer = ByteBuffer.allocateDirect(4 * INPUT_SIZE * INPUT_SIZE * PIXEL_SIZE);
-        byteBuffer.order(ByteOrder.nativeOrder());
-        int[] intValues = new int[INPUT_SIZE * INPUT_SIZE];
-        bitmap.getPixels(intValues, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
-        int pixel = 0;
-        for (int i = 0; i < INPUT_SIZE; ++i) {
-            for (int j = 0; j < INPUT_SIZE; ++j) {
-                final int val = intValues[pixel++];
-                byteBuffer.putFloat((((val >> 16) & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
-                byteBuffer.putFloat((((val >> 8) & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
-                byteBuffer.putFloat(((val & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
+            for (int b = 0; b < count; b++) {
+                DetectionBatch out = outs.get(first + b);
+                out.clear();
+                processOutput(batchOutputFloats, b * decoder.getTensorSize(), out);
+                toBitmapPixels(out, bitmaps.get(first + b));
             }
         }
-        return byteBuffer;
     }
 
-    // Process YOLOv8 output and perform NMS
-    private List<DetectionResult> processOutput(float[][] output) {
-        // Use a PriorityQueue to keep track of the top N results.
-        final int MAX_RESULTS = 10; // Max number of detections to return
-        PriorityQueue<DetectionResult> pq = new PriorityQueue<>(
-                MAX_RESULTS,
-                new java.util.Comparator<DetectionResult>() {
-                    @Override
-                    public int compare(DetectionResult lhs, DetectionResult rhs) {
-                        // Sort by score in descending order
-                        return Float.compare(rhs.score, lhs.score);
-                    }
-                }
-        );
-
-        // Transpose and process detections
-        for (int i = 0; i < output.length; i++) {
-            float confidence = 0.0f;
-            int detectedClass = -1;
-
-            // Find the class with the highest score
-            for (int c = 4; c < output[i].length; c++) {
-                if (output[i][c] > confidence) {
-                    confidence = output[i][c];
-                    detectedClass = c - 4;
-                }
+    // Appends one image to a reusable input buffer at its current position.
+    // Crops that already match the model size skip the rescale. Each channel value is a table
+    // lookup rather than a subtract and divide.
+    private void convertBitmapToByteBuffer(Bitmap bitmap, ByteBuffer inputBuffer) {
+        Bitmap source = bitmap;
+        if (bitmap.getWidth() != INPUT_SIZE || bitmap.getHeight() != INPUT_SIZE) {
+            scaledCanvas.drawBitmap(bitmap, null, scaledRect, scalePaint);
+            source = scaledBitmap;
+        }
+        source.getPixels(intValues, 0, INPUT_SIZE, 0, 0, INPUT_SIZE, INPUT_SIZE);
+        final int pixels = INPUT_SIZE * INPUT_SIZE;
+        if (quantizedInput) {
+            for (int p = 0; p < pixels; ++p) {
+                final int val = intValues[p];
+                inputBuffer.put((byte) (val >> 16));
+                inputBuffer.put((byte) (val >> 8));
+                inputBuffer.put((byte) val);
             }
+            return;
+        }
+        final float[] lutR = channelLut[0];
+        final float[] lutG = channelLut[1];
+        final float[] lutB = channelLut[2];
+        for (int p = 0; p < pixels; ++p) {
+            final int val = intValues[p];
+            inputBuffer.putFloat(lutR[(val >> 16) & 0xFF]);
+            inputBuffer.putFloat(lutG[(val >> 8) & 0xFF]);
+            inputBuffer.putFloat(lutB[val & 0xFF]);
+        }
+    }
 
-            // Filter by confidence threshold
-            float CONFIDENCE_THRESHOLD = 0.5f;
-            if (confidence > CONFIDENCE_THRESHOLD && detectedClass < labelList.size()) {
-                float cx = output[i][0];
-                float cy = output[i][1];
-                float w = output[i][2];
-                float h = output[i][3];
-                float left = cx - w / 2;
-                float top = cy - h / 2;
-                float right = cx + w / 2;
-                float bottom = cy + h / 2;
-
-                android.graphics.RectF boundingBox = new android.graphics.RectF(left, top, right, bottom);
-                String label = labelList.get(detectedClass);
-                pq.add(new DetectionResult(label, confidence, boundingBox));
-            }
+    // Decoded boxes are in model input pixels; model-sized crops need no scaling
+    private void toBitmapPixels(DetectionBatch out, Bitmap bitmap) {
+        if (bitmap.getWidth() != INPUT_SIZE || bitmap.getHeight() != INPUT_SIZE) {
+            out.scale(bitmap.getWidth() / (float) INPUT_SIZE, bitmap.getHeight() / (float) INPUT_SIZE);
         }
+    }
 
-        // You should apply Non-Maximum Suppression (NMS) here.
-        // For simplicity, we are returning top results, but for real competition, NMS is crucial.
-        // You can adapt the NonMaxSuppression.java class from the 5th kibo champion for this.
+    // Process YOLOv8 output and perform NMS
+    private void processOutput(FloatBuffer output, int offset, DetectionBatch out) {
+        if (tensorDumpDir != null) {
+            dumpTensor(output, offset);
+        }
+        long start = Metrics.start();
+        int decoded = decoder.decode(output, offset, CONFIDENCE_THRESHOLD, out);
+        Metrics.record(Metrics.Stage.DECODE, start);
+        Metrics.add(Metrics.Counter.DETECTIONS_DECODED, decoded);
+        start = Metrics.start();
+        // YOLO emits several anchors per object, so duplicates are removed per class before counting
+        NonMaxSuppression.softNonMaxSuppression(out, 0.5f, NMS_THRESHOLD, CONFIDENCE_THRESHOLD, INPUT_SIZE, INPUT_SIZE, 0, NonMaxSuppression.METHOD_HARD, true);
+        out.retainTopK(MAX_RESULTS);
+        Metrics.record(Metrics.Stage.NMS, start);
+        Metrics.add(Metrics.Counter.DETECTIONS_KEPT, out.size());
+    }
 
-        final ArrayList<DetectionResult> detections = new ArrayList<>();
-        int recognitionsSize = Math.min(pq.size(), MAX_RESULTS);
-        for (int i = 0; i < recognitionsSize; ++i) {
-            detections.add(pq.poll());
+    private void dumpTensor(FloatBuffer output, int offset) {
+        int size = decoder.getTensorSize();
+        ByteBuffer bytes = ByteBuffer.allocate(size * 4).order(ByteOrder.LITTLE_ENDIAN);
+        for (int k = 0; k < size; k++) {
+            bytes.putFloat(output.get(offset + k));
+        }
+        int[] shape = interpreter.getOutputTensor(0).shape();
+        StringBuilder shapeName = new StringBuilder("1");
+        for (int d = 1; d < shape.length; d++) {
+            shapeName.append('x').append(shape[d]);
+        }
+        File file = new File(tensorDumpDir, String.format(Locale.US, "tensor_%04d_%s.bin", tensorDumpCount.incrementAndGet(), shapeName));
+        try (FileOutputStream stream = new FileOutputStream(file)) {
+            stream.write(bytes.array());
+        } catch (IOException e) {
+            Log.w("ObjectDetector", "Failed to write " + file, e);
         }
-        return detections;
     }
-}
\ No newline at end of file
+}
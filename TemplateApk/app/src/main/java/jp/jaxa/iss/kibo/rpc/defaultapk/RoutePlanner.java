@@ -0,0 +1,140 @@
+package jp.jaxa.iss.kibo.rpc.defaultapk;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import gov.nasa.arc.astrobee.types.Point;
+import gov.nasa.arc.astrobee.types.Quaternion;
+
+// Orders the patrol areas to minimize the predicted flight time, with the start pose and the final
+// stop (the astronaut) fixed. A leg is predicted as
+//
+//     settleSeconds + distance / metersPerSecond + rotation angle / radiansPerSecond
+//
+// and the order is found exactly with Held-Karp dynamic programming over subsets, which is
+// O(2^n * n^2) and instant for the handful of areas in a mission. The rates are rough defaults;
+// YourService logs predicted against measured leg times so they can be calibrated.
+public class RoutePlanner {
+    private final double metersPerSecond;
+    private final double radiansPerSecond;
+    private final double settleSeconds;
+
+    public RoutePlanner(double metersPerSecond, double radiansPerSecond, double settleSeconds) {
+        this.metersPerSecond = metersPerSecond;
+        this.radiansPerSecond = radiansPerSecond;
+        this.settleSeconds = settleSeconds;
+    }
+
+    public double legSeconds(Point from, Quaternion fromOrientation, Point to, Quaternion toOrientation) {
+        double dx = to.getX() - from.getX();
+        double dy = to.getY() - from.getY();
+        double dz = to.getZ() - from.getZ();
+        double distance = Math.sqrt(dx * dx + dy * dy + dz * dz);
+        return settleSeconds + distance / metersPerSecond + angleBetween(fromOrientation, toOrientation) / radiansPerSecond;
+    }
+
+    // Rotation angle in radians between two orientations, 0..pi; q and -q are the same rotation
+    public static double angleBetween(Quaternion a, Quaternion b) {
+        double dot = a.getX() * b.getX() + a.getY() * b.getY() + a.getZ() * b.getZ() + a.getW() * b.getW();
+        double norms = Math.sqrt(norm2(a) * norm2(b));
+        if (norms == 0) {
+            return 0;
+        }
+        return 2 * Math.acos(Math.min(1, Math.abs(dot) / norms));
+    }
+
+    // The visit order of areas (keys of points/orientations) from the start pose that minimizes the
+    // predicted time to reach end after the last area. end may be null for an open route.
+    public List<Integer> plan(Point start, Quaternion startOrientation, List<Integer> areas,
+                              Map<Integer, Point> points, Map<Integer, Quaternion> orientations, Integer end) {
+        int n = areas.size();
+        if (n == 0) {
+            return new ArrayList<>();
+        }
+        if (n > 16) {
+            throw new IllegalArgumentException("Exact route search supports at most 16 areas, got " + n);
+        }
+        double[] fromStart = new double[n];
+        double[] toEnd = new double[n];
+        double[][] between = new double[n][n];
+        for (int i = 0; i < n; i++) {
+            Point p = points.get(areas.get(i));
+            Quaternion q = orientations.get(areas.get(i));
+            fromStart[i] = legSeconds(start, startOrientation, p, q);
+            toEnd[i] = end == null ? 0 : legSeconds(p, q, points.get(end), orientations.get(end));
+            for (int j = 0; j < n; j++) {
+                between[i][j] = legSeconds(p, q, points.get(areas.get(j)), orientations.get(areas.get(j)));
+            }
+        }
+
+        // cost[mask][last]: cheapest time from the start through exactly the areas in mask, ending at last
+        int full = (1 << n) - 1;
+        double[][] cost = new double[full + 1][n];
+        int[][] previous = new int[full + 1][n];
+        for (double[] row : cost) {
+            Arrays.fill(row, Double.POSITIVE_INFINITY);
+        }
+        for (int i = 0; i < n; i++) {
+            cost[1 << i][i] = fromStart[i];
+            previous[1 << i][i] = -1;
+        }
+        for (int mask = 1; mask <= full; mask++) {
+            for (int last = 0; last < n; last++) {
+                if ((mask & (1 << last)) == 0 || cost[mask][last] == Double.POSITIVE_INFINITY) {
+                    continue;
+                }
+                for (int next = 0; next < n; next++) {
+                    if ((mask & (1 << next)) != 0) {
+                        continue;
+                    }
+                    int nextMask = mask | (1 << next);
+                    double candidate = cost[mask][last] + between[last][next];
+                    if (candidate < cost[nextMask][next]) {
+                        cost[nextMask][next] = candidate;
+                        previous[nextMask][next] = last;
+                    }
+                }
+            }
+        }
+
+        int best = 0;
+        for (int last = 1; last < n; last++) {
+            if (cost[full][last] + toEnd[last] < cost[full][best] + toEnd[best]) {
+                best = last;
+            }
+        }
+        Integer[] order = new Integer[n];
+        int mask = full;
+        for (int k = n - 1, last = best; k >= 0; k--) {
+            order[k] = areas.get(last);
+            int before = previous[mask][last];
+            mask &= ~(1 << last);
+            last = before;
+        }
+        return new ArrayList<>(Arrays.asList(order));
+    }
+
+    // Predicted time of the whole route from the start pose through order and on to end (if any)
+    public double routeSeconds(Point start, Quaternion startOrientation, List<Integer> order,
+                               Map<Integer, Point> points, Map<Integer, Quaternion> orientations, Integer end) {
+        double total = 0;
+        Point p = start;
+        Quaternion q = startOrientation;
+        List<Integer> stops = new ArrayList<>(order);
+        if (end != null) {
+            stops.add(end);
+        }
+        for (int stop : stops) {
+            total += legSeconds(p, q, points.get(stop), orientations.get(stop));
+            p = points.get(stop);
+            q = orientations.get(stop);
+        }
+        return total;
+    }
+
+    private static double norm2(Quaternion q) {
+        return q.getX() * q.getX() + q.getY() * q.getY() + q.getZ() * q.getZ() + q.getW() * q.getW();
+    }
+}
@@ -0,0 +1,206 @@
+package jp.jaxa.iss.kibo.rpc.defaultapk;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Tiled inference for crops much larger than the model input, where small items (coins, keys,
+// crystals) would lose their detail when the whole crop is squashed to the input size. The crop is
+// cut into overlapping model-sized tiles, and the tiles plus the whole crop go through the wrapped
+// detector as one batched invocation. Tile boxes are shifted back to crop pixels and merged with
+// the whole-crop boxes by class-aware NMS. A box that touches a tile edge shared with a neighbour
+// is dropped: it is cut off, and an item smaller than the overlap is seen whole in the neighbour.
+//
+// Tiling is only worth it when that invocation really is one: a crop is tiled only if it needs
+// fewer than the wrapped detector's getMaxBatchSize() tiles, and is otherwise passed through, as
+// are crops below DetectorConfig.tileMinScale model inputs. maxCropSize() is the largest crop that
+// can still be tiled, so callers need not make larger ones. Like every Detector, an instance is a
+// single-threaded session.
+public class TiledDetector implements Detector {
+    private final Detector delegate;
+    private final float minScale;
+    private final float overlap;
+    private final float scoreThreshold;
+    private final float nmsThreshold;
+    private final int maxResults;
+
+    // Reusable tile bitmaps and per-input outputs; slot 0 of inputs is always the whole crop
+    private final List<Bitmap> tiles = new ArrayList<>();
+    private final List<Bitmap> inputs = new ArrayList<>();
+    private final List<DetectionBatch> tileOuts = new ArrayList<>();
+    private final Canvas canvas = new Canvas();
+    private final Rect srcRect = new Rect();
+    private final Rect dstRect = new Rect();
+    private int[] keep = new int[16];
+
+    public TiledDetector(Detector delegate, DetectorConfig config) {
+        this.delegate = delegate;
+        this.minScale = config.tileMinScale;
+        this.overlap = config.tileOverlap;
+        this.scoreThreshold = config.scoreThreshold;
+        this.nmsThreshold = config.nmsThreshold;
+        this.maxResults = config.maxResults;
+    }
+
+    // The policy: tile only when the crop's longer side is at least minScale model inputs, and the
+    // crop and its tiles fit one batched invocation of the delegate
+    public boolean shouldTile(Bitmap bitmap) {
+        int input = delegate.getInputSize();
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        return minScale > 0 && Math.max(width, height) >= minScale * input
+                && 1 + tileCount(width, Math.min(input, width)) * tileCount(height, Math.min(input, height)) <= delegate.getMaxBatchSize();
+    }
+
+    // Longest square crop side that can still be tiled: the whole crop plus k x k tiles fill at most
+    // one batch, and k tiles at the configured overlap span one input plus k - 1 strides
+    public int maxCropSize() {
+        int input = delegate.getInputSize();
+        int perAxis = (int) Math.sqrt(Math.max(0, delegate.getMaxBatchSize() - 1));
+        if (perAxis < 1) {
+            return input;
+        }
+        return input + (int) ((perAxis - 1) * input * (1 - overlap));
+    }
+
+    // Whether any crop up to maxCropSize() would be tiled; if not, wrapping the delegate is pointless
+    public boolean canTile() {
+        return minScale > 0 && maxCropSize() >= minScale * delegate.getInputSize();
+    }
+
+    @Override
+    public DetectionBatch detect(Bitmap bitmap, DetectionBatch out) {
+        if (!shouldTile(bitmap)) {
+            return delegate.detect(bitmap, out);
+        }
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int tileWidth = Math.min(delegate.getInputSize(), width);
+        int tileHeight = Math.min(delegate.getInputSize(), height);
+        int[] xs = origins(width, tileWidth);
+        int[] ys = origins(height, tileHeight);
+        int n = xs.length * ys.length;
+        ensureTiles(n, tileWidth, tileHeight);
+
+        inputs.clear();
+        inputs.add(bitmap);
+        for (int ty = 0; ty < ys.length; ty++) {
+            for (int tx = 0; tx < xs.length; tx++) {
+                Bitmap tile = tiles.get(ty * xs.length + tx);
+                canvas.setBitmap(tile);
+                srcRect.set(xs[tx], ys[ty], xs[tx] + tileWidth, ys[ty] + tileHeight);
+                dstRect.set(0, 0, tileWidth, tileHeight);
+                canvas.drawBitmap(bitmap, srcRect, dstRect, null);
+                inputs.add(tile);
+            }
+        }
+        canvas.setBitmap(null);
+        delegate.detectBatch(inputs, tileOuts.subList(0, n + 1));
+
+        out.clear();
+        out.addAll(tileOuts.get(0));
+        for (int ty = 0; ty < ys.length; ty++) {
+            for (int tx = 0; tx < xs.length; tx++) {
+                DetectionBatch tileOut = tileOuts.get(1 + ty * xs.length + tx);
+                dropCutBoxes(tileOut, xs[tx] > 0, ys[ty] > 0, xs[tx] + tileWidth < width, ys[ty] + tileHeight < height, tileWidth, tileHeight);
+                tileOut.offset(xs[tx], ys[ty]);
+                out.addAll(tileOut);
+            }
+        }
+        // Each input already went through NMS in the delegate, so the merge is timed on its own
+        long start = Metrics.start();
+        NonMaxSuppression.softNonMaxSuppression(out, 0.5f, nmsThreshold, scoreThreshold, width, height, 0, NonMaxSuppression.METHOD_HARD, true);
+        out.retainTopK(maxResults);
+        Metrics.record(Metrics.Stage.TILE_MERGE, start);
+        return out;
+    }
+
+    // Tiled crops cannot share one call with each other, so only untiled batches stay batched
+    @Override
+    public void detectBatch(List<Bitmap> bitmaps, List<DetectionBatch> outs) {
+        for (Bitmap bitmap : bitmaps) {
+            if (shouldTile(bitmap)) {
+                for (int b = 0; b < bitmaps.size(); b++) {
+                    detect(bitmaps.get(b), outs.get(b));
+                }
+                return;
+            }
+        }
+        delegate.detectBatch(bitmaps, outs);
+    }
+
+    @Override
+    public List<String> getLabels() {
+        return delegate.getLabels();
+    }
+
+    @Override
+    public String getName() {
+        return "tiled-" + delegate.getName();
+    }
+
+    @Override
+    public int getInputSize() {
+        return delegate.getInputSize();
+    }
+
+    @Override
+    public int getMaxBatchSize() {
+        return delegate.getMaxBatchSize();
+    }
+
+    // Tile origins along one axis: as few tiles as keep at least the configured overlap, spread
+    // evenly so the first starts at 0 and the last ends at the crop edge
+    private int[] origins(int length, int tile) {
+        int count = tileCount(length, tile);
+        if (count == 1) {
+            return new int[]{0};
+        }
+        int[] origins = new int[count];
+        for (int i = 0; i < count; i++) {
+            origins[i] = Math.round(i * (length - tile) / (float) (count - 1));
+        }
+        return origins;
+    }
+
+    private int tileCount(int length, int tile) {
+        if (length <= tile) {
+            return 1;
+        }
+        return (int) Math.ceil((length - tile) / (tile * (1 - overlap))) + 1;
+    }
+
+    private void ensureTiles(int n, int tileWidth, int tileHeight) {
+        if (!tiles.isEmpty() && (tiles.get(0).getWidth() != tileWidth || tiles.get(0).getHeight() != tileHeight)) {
+            for (Bitmap tile : tiles) {
+                tile.recycle();
+            }
+            tiles.clear();
+        }
+        while (tiles.size() < n) {
+            tiles.add(Bitmap.createBitmap(tileWidth, tileHeight, Bitmap.Config.ARGB_8888));
+        }
+        while (tileOuts.size() < n + 1) {
+            tileOuts.add(new DetectionBatch(16));
+        }
+    }
+
+    // Drops boxes within a pixel of a tile edge that has a neighbouring tile behind it
+    private void dropCutBoxes(DetectionBatch d, boolean leftShared, boolean topShared, boolean rightShared, boolean bottomShared, int tileWidth, int tileHeight) {
+        if (keep.length < d.size()) {
+            keep = new int[d.size()];
+        }
+        int kept = 0;
+        for (int i = 0; i < d.size(); i++) {
+            boolean cut = (leftShared && d.left[i] <= 1) || (topShared && d.top[i] <= 1)
+                    || (rightShared && d.right[i] >= tileWidth - 1) || (bottomShared && d.bottom[i] >= tileHeight - 1);
+            if (!cut) {
+                keep[kept++] = i;
+            }
+        }
+        d.retain(keep, kept);
+    }
+}
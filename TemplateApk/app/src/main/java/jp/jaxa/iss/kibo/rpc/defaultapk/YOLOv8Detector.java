@@ -2,48 +2,134 @@ package jp.jaxa.iss.kibo.rpc.defaultapk;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.RectF;
+import android.util.Log;
 
 import org.tensorflow.lite.support.image.TensorImage;
+import org.tensorflow.lite.support.label.Category;
 import org.tensorflow.lite.task.core.BaseOptions;
 import org.tensorflow.lite.task.vision.detector.Detection;
 import org.tensorflow.lite.task.vision.detector.ObjectDetector;
 
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
-public class YOLOv8Detector {
+public class YOLOv8Detector implements Detector {
     private ObjectDetector objectDetector;
+    private final List<String> labels;
+    // labels.txt position of each label, to map the Task library's labels onto our class ids
+    private final Map<String, Integer> labelIds = new HashMap<>();
+    private boolean warnedLabelMismatch;
+    private final int inputSize;
 
-    public YOLOv8Detector(Context context, String modelName) throws IOException {
-        File modelFile = convertAssetToFile(context, modelName);
+    public YOLOv8Detector(Context context, String modelName, String labelName, DetectorConfig config) throws IOException {
+        this(ModelAssets.load(context, modelName, labelName), config);
+    }
+
+    // Maps the model in place instead of streaming it into a temp file; pooled instances share the mapping
+    public YOLOv8Detector(ModelAssets model, DetectorConfig config) throws IOException {
+        // The Task library reads its own metadata, but the model is still checked against the manifest
+        model.getModelConfig(config);
+        inputSize = model.getInputSize();
+        labels = model.getLabels();
+        for (int i = 0; i < labels.size(); i++) {
+            labelIds.put(labels.get(i), i);
+        }
+        // The Task library has no XNNPACK switch; its CPU path applies the XNNPACK delegate by default.
+        BaseOptions baseOptions = BaseOptions.builder()
+                .setNumThreads(config.threadsPerInstance())
+                .build();
         ObjectDetector.ObjectDetectorOptions options =
                 ObjectDetector.ObjectDetectorOptions.builder()
-                        .setBaseOptions(BaseOptions.builder().build())
-                        .setScoreThreshold(0.5f) // Adjust this threshold
-                        .setMaxResults(5)
+                        .setBaseOptions(baseOptions)
+                        .setScoreThreshold(config.scoreThreshold)
+                        .setMaxResults(config.maxResults)
                         .build();
-        objectDetector = ObjectDetector.createFromFileAndOptions(modelFile, options);
+        objectDetector = ObjectDetector.createFromBufferAndOptions(model.getModel(), options);
+        if (config.warmUp) {
+            warmUp(inputSize);
+        }
+    }
+
+    // Runs one detection on a blank frame so the first real area does not pay for kernel setup
+    private void warmUp(int size) {
+        Bitmap blank = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        objectDetector.detect(TensorImage.fromBitmap(blank));
+        blank.recycle();
     }
 
-    public List<Detection> detect(Bitmap bitmap) {
-        if (objectDetector == null || bitmap == null) return null;
-        return objectDetector.detect(TensorImage.fromBitmap(bitmap));
+    @Override
+    public List<String> getLabels() {
+        return labels;
     }
 
-    private File convertAssetToFile(Context context, String modelFileName) throws IOException {
-        InputStream inputStream = context.getAssets().open(modelFileName);
-        File tempFile = File.createTempFile("model", ".tflite");
-        tempFile.deleteOnExit();
-        try (FileOutputStream outputStream = new FileOutputStream(tempFile)) {
-            byte[] buffer = new byte[4 * 1024];
-            int read;
-            while ((read = inputStream.read(buffer)) != -1) {
-                outputStream.write(buffer, 0, read);
+    @Override
+    public String getName() {
+        return "task";
+    }
+
+    @Override
+    public int getInputSize() {
+        return inputSize;
+    }
+
+    @Override
+    public int getMaxBatchSize() {
+        return 1;
+    }
+
+    // Runs the Task-library detector and copies its results into out, best score first
+    @Override
+    public DetectionBatch detect(Bitmap bitmap, DetectionBatch out) {
+        out.clear();
+        if (objectDetector == null || bitmap == null) return out;
+        // The Task library preprocesses, runs, decodes and suppresses in one call
+        long start = Metrics.start();
+        List<Detection> detections = objectDetector.detect(TensorImage.fromBitmap(bitmap));
+        Metrics.record(Metrics.Stage.INFERENCE, start);
+        Metrics.add(Metrics.Counter.DETECTIONS_KEPT, detections.size());
+        for (Detection detection : detections) {
+            Category category = detection.getCategories().get(0);
+            int classId = classIdOf(category);
+            if (classId < 0) {
+                continue;
+            }
+            RectF box = detection.getBoundingBox();
+            out.add(classId, category.getScore(), box.left, box.top, box.right, box.bottom);
+        }
+        return out;
+    }
+
+    // The label embedded in the model is what the class really is, so it is looked up in
+    // labels.txt rather than trusting that both lists share an order. Only a model without
+    // embedded labels falls back to the index. A label missing from labels.txt is dropped.
+    private int classIdOf(Category category) {
+        String label = category.getLabel();
+        if (label == null || label.isEmpty()) {
+            return category.getIndex();
+        }
+        Integer id = labelIds.get(label);
+        if (id == null) {
+            if (!warnedLabelMismatch) {
+                warnedLabelMismatch = true;
+                Log.w("YOLOv8Detector", "Model label '" + label + "' is not in labels.txt, dropping its detections");
             }
+            return -1;
+        }
+        if (id != category.getIndex() && !warnedLabelMismatch) {
+            warnedLabelMismatch = true;
+            Log.w("YOLOv8Detector", "labels.txt order differs from the model's labels, mapping by name");
+        }
+        return id;
+    }
+
+    // The Task library has no batched entry point
+    @Override
+    public void detectBatch(List<Bitmap> bitmaps, List<DetectionBatch> outs) {
+        for (int b = 0; b < bitmaps.size(); b++) {
+            detect(bitmaps.get(b), outs.get(b));
         }
-        return tempFile;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,81 @@
+package jp.jaxa.iss.kibo.rpc.defaultapk;
+
+import java.nio.FloatBuffer;
+
+// Decodes a raw YOLOv8 output tensor in place, straight from the interpreter's flat output buffer.
+// The native layout is channel-major [1][4 + classes][anchors]: cx, cy, w, h rows followed by one
+// score row per class. Row-major [1][anchors][4 + classes] exports are handled with the same strides.
+public class YoloOutputDecoder {
+
+    private final int numClasses;
+    private final int numAnchors;
+    private final int classStride;
+    private final int anchorStride;
+
+    // Per-anchor running maximum, reused between frames
+    private final float[] bestScore;
+    private final int[] bestClass;
+
+    public YoloOutputDecoder(int numClasses, int numAnchors, boolean channelMajor) {
+        this.numClasses = numClasses;
+        this.numAnchors = numAnchors;
+        this.classStride = channelMajor ? numAnchors : 1;
+        this.anchorStride = channelMajor ? 1 : numClasses + 4;
+        this.bestScore = new float[numAnchors];
+        this.bestClass = new int[numAnchors];
+    }
+
+    // Builds a decoder from an output tensor shape, detecting which axis holds the 4 + classes channels
+    public static YoloOutputDecoder forShape(int[] outputShape, int numClasses) {
+        boolean channelMajor = outputShape[1] == numClasses + 4 && outputShape[2] != numClasses + 4;
+        int numAnchors = channelMajor ? outputShape[2] : outputShape[1];
+        return new YoloOutputDecoder(numClasses, numAnchors, channelMajor);
+    }
+
+    public int getNumAnchors() {
+        return numAnchors;
+    }
+
+    // Number of floats one image occupies in the output tensor, used to step through a batch
+    public int getTensorSize() {
+        return numAnchors * (numClasses + 4);
+    }
+
+    // Appends every anchor whose best class score is above threshold to out. offset is the index of
+    // the image's first float in output, so batched outputs can be decoded one slice at a time.
+    public int decode(FloatBuffer output, int offset, float threshold, DetectionBatch out) {
+        // Class-max pass: walk one class row at a time, which is a contiguous scan for channel-major output
+        int row = offset + 4 * classStride;
+        for (int i = 0, idx = row; i < numAnchors; i++, idx += anchorStride) {
+            bestScore[i] = output.get(idx);
+            bestClass[i] = 0;
+        }
+        for (int c = 1; c < numClasses; c++) {
+            row = offset + (4 + c) * classStride;
+            for (int i = 0, idx = row; i < numAnchors; i++, idx += anchorStride) {
+                float score = output.get(idx);
+                if (score > bestScore[i]) {
+                    bestScore[i] = score;
+                    bestClass[i] = c;
+                }
+            }
+        }
+
+        // Only anchors that survive the threshold read their box coordinates
+        int emitted = 0;
+        for (int i = 0; i < numAnchors; i++) {
+            float score = bestScore[i];
+            if (score <= threshold) {
+                continue;
+            }
+            int idx = offset + i * anchorStride;
+            float cx = output.get(idx);
+            float cy = output.get(idx + classStride);
+            float w = output.get(idx + 2 * classStride);
+            float h = output.get(idx + 3 * classStride);
+            out.add(bestClass[i], score, cx - w / 2, cy - h / 2, cx + w / 2, cy + h / 2);
+            emitted++;
+        }
+        return emitted;
+    }
+}
@@ -1,26 +1,26 @@
 package jp.jaxa.iss.kibo.rpc.defaultapk; // Use your team's application ID
 
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
+import android.os.SystemClock;
 import android.util.Log;
 
-import org.opencv.aruco.Aruco;
-import org.opencv.aruco.Dictionary;
+import org.opencv.android.Utils;
 import org.opencv.core.Mat;
-import org.opencv.core.MatOfPoint2f;
-import org.opencv.core.Rect;
-import org.opencv.imgproc.Imgproc;
-import org.tensorflow.lite.task.vision.detector.Detection;
 
 import java.io.File;
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import gov.nasa.arc.astrobee.Result;
+import gov.nasa.arc.astrobee.Kinematics;
 import gov.nasa.arc.astrobee.types.Point;
 import gov.nasa.arc.astrobee.types.Quaternion;
 import jp.jaxa.iss.kibo.rpc.api.KiboRpcService;
@@ -29,8 +29,74 @@ public class YourService extends KiboRpcService {
 
     // TODO: IMPORTANT! Change this to the exact name of your model file in the assets folder.
     private final String TFLITE_MODEL_NAME = "model.tflite";
-
-    private YOLOv8Detector yoloDetector;
+    private final String TFLITE_LABELS_NAME = "labels.txt";
+    // Set to true to also write every AR crop to the DebugImages folder. The pipeline itself never reads them back.
+    private static final boolean SAVE_DEBUG_IMAGES = false;
+    // Set to true to record the raw model output of every burst frame for the off-device replay runner
+    private static final boolean SAVE_DEBUG_TENSORS = false;
+    // Burst mode: frames grabbed per area (1 = single frame), frames per batched inference call,
+    // spacing between grabs, and the per-area budget for capture plus processing. Processing stops
+    // early once BURST_AGREEMENT_FRAMES consecutive frames agree on the item and its count.
+    // Off by default: batching only works on the raw INTERPRETER backend, so turn it on together
+    // with DETECTOR_BACKEND once BENCHMARK_BACKENDS shows that backend agrees with TASK.
+    private static final int BURST_FRAMES = 1;
+    private static final int BURST_BATCH_SIZE = 2;
+    private static final long BURST_FRAME_INTERVAL_MS = 150;
+    private static final long BURST_TIME_BUDGET_MS = 4000;
+    private static final int BURST_AGREEMENT_FRAMES = 2;
+    // Detection backend; DetectorFactory falls back to the other one if this fails to load.
+    // Burst mode batches only on INTERPRETER; TASK runs the frames one at a time.
+    private static final DetectorConfig.Backend DETECTOR_BACKEND = DetectorConfig.Backend.TASK;
+    // Set to true to also run the other backend on every crop and log latency and agreement at mission end
+    private static final boolean BENCHMARK_BACKENDS = false;
+    // Side range of the rectified item-area crop. The warp keeps the area's own resolution within
+    // it: distant areas are scaled up to the model input (metadata_properties.json), and areas seen
+    // at 1.5x the input or more are detected in tiles (DetectorConfig.tileMinScale), which keeps
+    // small items sharp. Tiling needs the crop and its tiles in one batched invocation, so it only
+    // runs on INTERPRETER with a batch of at least 5 (DetectorConfig.maxBatchSize); otherwise, as
+    // shipped, crops stop at the model input (DetectorPool.getMaxCropSize()). The upper bound caps
+    // the crop's memory.
+    private static final int CROP_MIN_SIZE = 512;
+    private static final int CROP_MAX_SIZE = 1536;
+
+    // Leg time model for ordering the patrol: Astrobee's nominal flight mode limits plus the time
+    // a moveTo takes to settle. Compare with the ROUTE log lines and adjust.
+    private static final double ROUTE_METERS_PER_SECOND = 0.2;
+    private static final double ROUTE_RADIANS_PER_SECOND = Math.toRadians(10);
+    private static final double ROUTE_SETTLE_SECONDS = 3.0;
+
+    // Retries per leg (see MotionExecutor for how each one differs), the time after which no new
+    // attempt is started, how far a detour waypoint sits beside the leg, and how far a retry may
+    // shift the goal
+    private static final int MOVE_MAX_ATTEMPTS = 5;
+    private static final long MOVE_TIME_BUDGET_MS = 45000;
+    private static final double MOVE_WAYPOINT_OFFSET_METERS = 0.2;
+    private static final double MOVE_NUDGE_METERS = 0.05;
+
+    // Built on the vision executor while the mission starts; see getDetectorPool()
+    private Future<DetectorPool> detectorPoolFuture;
+    // Only set with BENCHMARK_BACKENDS
+    private DetectorComparison backendComparison;
+    // Created before the mission starts and shared by every area job, so the per-area ROIs it
+    // remembers carry over between captures
+    private MarkerLocator markerLocator;
+    private final ItemAreaWarper itemAreaWarper = new ItemAreaWarper(CROP_MIN_SIZE);
+    // Item centers seen while patrolling, to aim the final snapshot in the same move as the approach
+    private final FinalAim finalAim = new FinalAim();
+    // Reusable native buffers for captures and crops; see MatScope
+    private final MatPool matPool = new MatPool();
+    // Built from the API intrinsics on first use, then shared by every capture of that camera
+    private CameraModel navCamModel;
+    private CameraModel dockCamModel;
+    // Runs AR cropping and inference for areas while the robot flies to the next one, one thread
+    // per pooled detector so e.g. the DockCam frame does not queue behind pending NavCam work
+    private ExecutorService visionExecutor;
+    // Set in runPlan1, once api is available
+    private MotionExecutor motionExecutor;
+    private final RoutePlanner routePlanner = new RoutePlanner(ROUTE_METERS_PER_SECOND, ROUTE_RADIANS_PER_SECOND, ROUTE_SETTLE_SECONDS);
+    // Pose the robot was last measured at, the start of the next leg for predicted leg times; null until known
+    private Point currentPoint;
+    private Quaternion currentOrientation;
     private final Map<Integer, Point> patrolPoints = new HashMap<>();
     private final Map<Integer, Quaternion> patrolOrientations = new HashMap<>();
     private final Map<String, Object> missionData = new HashMap<>();
@@ -38,30 +104,60 @@ public class YourService extends KiboRpcService {
     @Override
     protected void runPlan1() {
         initializeMissionParameters();
+        motionExecutor = new MotionExecutor(api, MOVE_MAX_ATTEMPTS, MOVE_TIME_BUDGET_MS, MOVE_WAYPOINT_OFFSET_METERS, MOVE_NUDGE_METERS);
+        Metrics.reset();
+
+        // The ArUco setup is cheap, so it is done here, before any area job can need it. Model
+        // loading runs in the background while the mission starts and the robot flies to area 1.
+        // Area jobs wait for it in getDetectorPool().
+        markerLocator = new MarkerLocator();
+        final DetectorConfig config = new DetectorConfig();
+        config.backend = DETECTOR_BACKEND;
+        config.maxBatchSize = BURST_FRAMES > 1 ? BURST_BATCH_SIZE : 1;
+        if (SAVE_DEBUG_TENSORS) {
+            config.tensorDumpDir = new File(getExternalFilesDir(null), "tensors");
+        }
+        visionExecutor = Executors.newFixedThreadPool(Math.max(1, config.poolSize));
+        detectorPoolFuture = visionExecutor.submit(new Callable<DetectorPool>() {
+            @Override
+            public DetectorPool call() throws Exception {
+                ModelAssets model = ModelAssets.load(getApplicationContext(), TFLITE_MODEL_NAME, TFLITE_LABELS_NAME);
+                DetectorPool pool = DetectorPool.create(model, config);
+                if (BENCHMARK_BACKENDS) {
+                    Detector primary = DetectorFactory.create(model, config);
+                    DetectorConfig.Backend other = DetectorFactory.backendOf(primary) == DetectorConfig.Backend.TASK
+                            ? DetectorConfig.Backend.INTERPRETER : DetectorConfig.Backend.TASK;
+                    backendComparison = new DetectorComparison(primary, DetectorFactory.create(other, model, config));
+                }
+                Log.i("MISSION_PHASE", "Detector pool initialized successfully (" + pool.size() + "x " + pool.getName() + " backend).");
+                return pool;
+            }
+        });
+        api.startMission();
 
-        try {
-            yoloDetector = new YOLOv8Detector(getApplicationContext(), TFLITE_MODEL_NAME);
-            Log.i("MISSION_PHASE", "YOLOv8 Detector initialized successfully.");
-        } catch (IOException e) {
-            Log.e("CRITICAL_ERROR", "Failed to initialize YOLOv8 detector. Aborting.", e);
-            return;
+        // Phase 1: Patrol all areas in the order with the least predicted flight time, ending at the
+        // astronaut. Each area is captured here, then processed in the background during the next flight.
+        List<Integer> route = planPatrolRoute();
+        Map<Integer, Future<ItemDetectionResult>> pendingAreas = new HashMap<>();
+        for (int area : route) {
+            pendingAreas.put(area, patrolAndDetectAsync(area));
         }
 
-        api.startMission();
+        // Phase 2: Report to Astronaut and get the final clue. The last area is still being
+        // processed during this flight, so the detections are joined only once it is over.
+        moveToWrapper(patrolPoints.get(10), patrolOrientations.get(10));
 
-        // Phase 1: Patrol all areas using a defined strategy
-        patrolAndDetect(1);
-        patrolAndDetect(2);
-        patrolAndDetect(3);
-        patrolAndDetect(4);
+        // Join the background detections before reporting
+        for (int area = 1; area <= 4; area++) {
+            ItemDetectionResult areaResult = awaitDetection(pendingAreas.get(area), area);
+            missionData.put("Area" + area + "_Item", areaResult.getItemName());
+            missionData.put("Area" + area + "_Count", areaResult.getItemCount());
+        }
 
         // Report all findings to the system
         for(int area = 1; area <= 4; area++) {
             api.setAreaInfo(area, (String) missionData.getOrDefault("Area" + area + "_Item", "none"), (Integer) missionData.getOrDefault("Area" + area + "_Count", 0));
         }
-
-        // Phase 2: Report to Astronaut and get the final clue
-        moveToWrapper(patrolPoints.get(10), patrolOrientations.get(10));
         api.reportRoundingCompletion(); //
 
         ItemDetectionResult targetClue = patrolAndDetect(5); // Area 5 is the astronaut's clue
@@ -84,53 +180,228 @@ public class YourService extends KiboRpcService {
 
         if (finalArea != 0) {
             Log.i("MISSION_PHASE", "Final target '" + finalTargetItem + "' is in Area " + finalArea + ". Moving to take snapshot.");
-            moveToWrapper(patrolPoints.get(finalArea), patrolOrientations.get(finalArea));
-            // Perform a final, precise turn for a perfect shot
-            List<Double> finalTurnAngles = calculateFinalTurn(finalArea);
-            moveToWrapper(patrolPoints.get(finalArea), QuaternionUtils.computeQuaternionFromAngles(finalTurnAngles));
+            // Approach and aim in one move, using the item position measured during the patrol
+            if (!finalAim.has(finalArea)) {
+                Log.w("MISSION_PHASE", "No marker pose for Area " + finalArea + ", using the patrol orientation");
+            }
+            MotionExecutor.MoveResult approach = moveToWrapper(patrolPoints.get(finalArea), finalAim.orientationFor(finalArea, patrolOrientations.get(finalArea)));
+            if (approach.goalPerturbed) {
+                // The aim was solved for the patrol point, so it is off by the nudge
+                Log.w("MISSION_PHASE", "Final approach ended " + String.format(Locale.US, "%.3f", approach.finalError) + "m from the patrol point, snapshot aim may be off");
+            }
         } else {
             Log.e("MISSION_ERROR", "Could not locate final target '" + finalTargetItem + "'. Taking snapshot at a default location.");
             moveToWrapper(patrolPoints.get(1), patrolOrientations.get(1)); // Fallback
         }
         api.takeTargetItemSnapshot(); //
+        visionExecutor.shutdown();
+        matPool.clear();
+        logMetricsSummary();
     }
 
     private ItemDetectionResult patrolAndDetect(int areaNumber) {
+        return awaitDetection(patrolAndDetectAsync(areaNumber), areaNumber);
+    }
+
+    // Moves to the area and grabs the frame on the calling thread, then hands cropping and
+    // inference to the vision executor so the caller can start the next flight immediately.
+    private Future<ItemDetectionResult> patrolAndDetectAsync(final int areaNumber) {
         Log.i("PATROL_LOGIC", "Processing Area: " + areaNumber);
         if (areaNumber <= 4) { // Standard patrol
             moveToWrapper(patrolPoints.get(areaNumber), patrolOrientations.get(areaNumber));
         }
         // Area 5 (Astronaut) does not require movement as we are already there.
 
-        String imagePath = AR_cropping(areaNumber);
-        if (imagePath == null) {
-            Log.e("AR_ERROR", "AR Cropping failed for area " + areaNumber);
-            return new ItemDetectionResult("error", 0);
+        // Use NavCam for areas 1-4, DockCam for astronaut's clue (area 5)
+        final CameraModel camera = getCameraModel(areaNumber == 5);
+        if (BURST_FRAMES > 1) {
+            final long burstStart = SystemClock.elapsedRealtime();
+            final List<Mat> frames = captureBurst(areaNumber, burstStart);
+            return visionExecutor.submit(new Callable<ItemDetectionResult>() {
+                @Override
+                public ItemDetectionResult call() throws InterruptedException {
+                    return detectInBurst(frames, camera, areaNumber, burstStart);
+                }
+            });
         }
 
-        return predictItemsInArea(imagePath, areaNumber);
+        long captureStart = Metrics.start();
+        final Mat image = (areaNumber == 5) ? api.getMatDockCam() : api.getMatNavCam();
+        Metrics.record(Metrics.Stage.CAPTURE, captureStart);
+        Metrics.increment(Metrics.Counter.FRAMES);
+        return visionExecutor.submit(new Callable<ItemDetectionResult>() {
+            @Override
+            public ItemDetectionResult call() throws InterruptedException {
+                return detectInCapture(image, camera, areaNumber);
+            }
+        });
     }
 
-    private ItemDetectionResult predictItemsInArea(String imagePath, int areaNumber) {
-        Bitmap bitmap = loadBitmapFromSDCard(imagePath);
-        if (bitmap == null) {
-            Log.e("YOLOv8_ERROR", "Could not load cropped image: " + imagePath);
+    private ItemDetectionResult awaitDetection(Future<ItemDetectionResult> pending, int areaNumber) {
+        try {
+            return pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Log.e("PATROL_LOGIC", "Interrupted while waiting for area " + areaNumber, e);
+        } catch (ExecutionException e) {
+            Log.e("PATROL_LOGIC", "Detection failed for area " + areaNumber, e.getCause());
+        }
+        return new ItemDetectionResult("error", 0);
+    }
+
+    // The frame and every Mat made while cropping it are freed when the area is done
+    private ItemDetectionResult detectInCapture(Mat image, CameraModel camera, int areaNumber) throws InterruptedException {
+        try (MatScope scope = new MatScope(matPool)) {
+            scope.track(image);
+            Mat cropped = AR_cropping(image, camera, areaNumber, scope);
+            if (cropped == null) {
+                Log.e("AR_ERROR", "AR Cropping failed for area " + areaNumber);
+                return new ItemDetectionResult("error", 0);
+            }
+
+            return predictItemsInArea(cropped, areaNumber);
+        }
+    }
+
+    // Grabs up to BURST_FRAMES frames, spaced so they are not the same camera frame, within the budget
+    private List<Mat> captureBurst(int areaNumber, long burstStart) {
+        List<Mat> frames = new ArrayList<>();
+        while (true) {
+            long captureStart = Metrics.start();
+            Mat frame = (areaNumber == 5) ? api.getMatDockCam() : api.getMatNavCam();
+            Metrics.record(Metrics.Stage.CAPTURE, captureStart);
+            if (frame != null) {
+                frames.add(frame);
+                Metrics.increment(Metrics.Counter.FRAMES);
+            }
+            if (frames.size() >= BURST_FRAMES || SystemClock.elapsedRealtime() - burstStart > BURST_TIME_BUDGET_MS) {
+                return frames;
+            }
+            SystemClock.sleep(BURST_FRAME_INTERVAL_MS);
+        }
+    }
+
+    // Crops the burst frames and runs them through the detector BURST_BATCH_SIZE at a time as
+    // single batched invocations, fusing counts across frames. Stops as soon as the frames agree
+    // or the area's time budget is spent; frames where the marker was not found are skipped.
+    // A pooled detector is held only for each batched call, not while cropping.
+    private ItemDetectionResult detectInBurst(List<Mat> frames, CameraModel camera, int areaNumber, long burstStart) throws InterruptedException {
+        DetectorPool detectors = getDetectorPool();
+        if (detectors == null) {
+            return new ItemDetectionResult("error", 0);
+        }
+        BurstFusion fusion = new BurstFusion(detectors.getLabels().size(), frames.size());
+        List<Bitmap> chunk = new ArrayList<>();
+        List<DetectionBatch> chunkDetections = new ArrayList<>();
+        for (int b = 0; b < BURST_BATCH_SIZE; b++) {
+            chunkDetections.add(new DetectionBatch(16));
+        }
+
+        // Frames skipped by an early stop are freed with the scope. Each frame and its crop are
+        // handed back as soon as the crop is a bitmap, so the pooled crop buffer is reused.
+        try (MatScope scope = new MatScope(matPool)) {
+            for (Mat frame : frames) {
+                scope.track(frame);
+            }
+            int next = 0;
+            while (next < frames.size()) {
+                chunk.clear();
+                while (next < frames.size() && chunk.size() < BURST_BATCH_SIZE) {
+                    Mat frame = frames.get(next++);
+                    Mat cropped = AR_cropping(frame, camera, areaNumber, scope);
+                    if (cropped != null && !cropped.empty()) {
+                        chunk.add(matToBitmap(cropped));
+                        if (backendComparison != null) {
+                            backendComparison.compare(chunk.get(chunk.size() - 1));
+                        }
+                    }
+                    if (cropped != null) {
+                        scope.release(cropped);
+                    }
+                    scope.release(frame);
+                }
+                if (!chunk.isEmpty()) {
+                    Detector detector = detectors.acquire();
+                    try {
+                        detector.detectBatch(chunk, chunkDetections.subList(0, chunk.size()));
+                    } finally {
+                        detectors.release(detector);
+                    }
+                    for (int b = 0; b < chunk.size(); b++) {
+                        fusion.addFrame(chunkDetections.get(b));
+                    }
+                }
+                if (fusion.isStable(BURST_AGREEMENT_FRAMES) || SystemClock.elapsedRealtime() - burstStart > BURST_TIME_BUDGET_MS) {
+                    break;
+                }
+            }
+        }
+
+        if (fusion.frameCount() == 0) {
+            Log.e("AR_ERROR", "AR Cropping failed for every burst frame of area " + areaNumber);
             return new ItemDetectionResult("error", 0);
         }
+        int itemClass = fusion.fusedClass();
+        Log.i("PATROL_LOGIC", "Area " + areaNumber + " fused " + fusion.frameCount() + "/" + frames.size() + " frames, confidence " + fusion.fusedConfidence());
+        Metrics.set(Metrics.Gauge.LAST_DETECTION_COUNT, fusion.fusedCount());
+        if (itemClass < 0) {
+            return new ItemDetectionResult("none", 0);
+        }
+        return new ItemDetectionResult(detectors.getLabels().get(itemClass), fusion.fusedCount());
+    }
 
-        List<Detection> detections = yoloDetector.detect(bitmap);
-        if (detections == null || detections.isEmpty()) {
+    private ItemDetectionResult predictItemsInArea(Mat cropped, int areaNumber) throws InterruptedException {
+        if (cropped.empty()) {
+            Log.e("YOLOv8_ERROR", "Empty cropped image for area " + areaNumber);
+            return new ItemDetectionResult("error", 0);
+        }
+        DetectorPool detectors = getDetectorPool();
+        if (detectors == null) {
+            return new ItemDetectionResult("error", 0);
+        }
+        DetectionBatch detections = new DetectionBatch(16);
+        Bitmap bitmap = matToBitmap(cropped);
+        if (backendComparison != null) {
+            backendComparison.compare(bitmap);
+        }
+        Detector yoloDetector = detectors.acquire();
+        try {
+            yoloDetector.detect(bitmap, detections);
+        } finally {
+            detectors.release(yoloDetector);
+        }
+        Metrics.set(Metrics.Gauge.LAST_DETECTION_COUNT, detections.size());
+        if (detections.size() == 0) {
             return new ItemDetectionResult("none", 0);
         }
 
         // TODO: Implement your own logic to count and filter detections.
         // This could involve Non-Maximum Suppression or other advanced techniques.
         // For now, we assume the most confident detection is the item type and count all detections.
-        String mostLikelyItem = detections.get(0).getCategories().get(0).getLabel();
+        // Class ids only become label strings here, at reporting time.
+        String mostLikelyItem = detectors.getLabels().get(detections.classId[0]);
         int itemCount = detections.size();
         return new ItemDetectionResult(mostLikelyItem, itemCount);
     }
 
+    private DetectorPool getDetectorPool() {
+        return awaitInit(detectorPoolFuture, "detector pool");
+    }
+
+    // Blocks only if the background init has not finished yet. An init failure is reported here,
+    // at the first detection that needs the model, and every area then reports "error".
+    private <T> T awaitInit(Future<T> pendingInit, String name) {
+        try {
+            return pendingInit.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Log.e("CRITICAL_ERROR", "Interrupted while waiting for the " + name + ".", e);
+        } catch (ExecutionException e) {
+            Log.e("CRITICAL_ERROR", "Failed to initialize " + name + ".", e.getCause());
+        }
+        return null;
+    }
+
     private void initializeMissionParameters() {
         // Points for patrolling areas. Fine-tune these values in the simulator.
         // Area Coordinates from Rulebook
@@ -147,59 +418,113 @@ public class YourService extends KiboRpcService {
         patrolOrientations.put(10, new Quaternion(0f, 0f, 0.707f, 0.707f));
     }
 
-    private boolean moveToWrapper(Point point, Quaternion quaternion) {
-        Result result = api.moveTo(point, quaternion, true);
-        int loopCounter = 0;
-        while (!result.hasSucceeded() && loopCounter < 3) {
-            result = api.moveTo(point, quaternion, true);
-            loopCounter++;
+    // Orders areas 1-4 from where the robot is after startMission, with the astronaut (point 10) last
+    private List<Integer> planPatrolRoute() {
+        updateCurrentPose(null, null);
+        List<Integer> areas = new ArrayList<>();
+        for (int area = 1; area <= 4; area++) {
+            areas.add(area);
         }
-        return result.hasSucceeded();
+        if (currentPoint == null || currentOrientation == null) {
+            Log.w("ROUTE", "No robot kinematics, patrolling in area order");
+            return areas;
+        }
+        List<Integer> route = routePlanner.plan(currentPoint, currentOrientation, areas, patrolPoints, patrolOrientations, 10);
+        Log.i("ROUTE", String.format(Locale.US, "Patrol order %s, predicted %.1fs (area order %.1fs)", route,
+                routePlanner.routeSeconds(currentPoint, currentOrientation, route, patrolPoints, patrolOrientations, 10),
+                routePlanner.routeSeconds(currentPoint, currentOrientation, areas, patrolPoints, patrolOrientations, 10)));
+        return route;
     }
 
-    private String AR_cropping(int targetNum) {
-        // Use NavCam for areas 1-4, DockCam for astronaut's clue (area 5)
-        Mat image = (targetNum == 5) ? api.getMatDockCam() : api.getMatNavCam();
-        double[][] cameraIntrinsics = (targetNum == 5) ? api.getDockCamIntrinsics() : api.getNavCamIntrinsics();
+    private MotionExecutor.MoveResult moveToWrapper(Point point, Quaternion quaternion) {
+        double predicted = currentPoint == null || currentOrientation == null ? Double.NaN
+                : routePlanner.legSeconds(currentPoint, currentOrientation, point, quaternion);
+        MotionExecutor.MoveResult result = motionExecutor.move(point, quaternion);
+        // Calibration data for the RoutePlanner rates
+        Log.i("ROUTE", String.format(Locale.US, "Leg to %s: predicted %.1fs, actual %.1fs, %s", point, predicted,
+                result.elapsedMs / 1000.0, result));
+        updateCurrentPose(point, quaternion);
+        return result;
+    }
+
+    // Reads where the robot actually is, so a failed or nudged leg does not skew the next
+    // prediction; the given pose is used only if kinematics are unavailable
+    private void updateCurrentPose(Point fallbackPoint, Quaternion fallbackOrientation) {
+        Kinematics kinematics = api.getRobotKinematics();
+        Point point = kinematics != null ? kinematics.getPosition() : null;
+        Quaternion orientation = kinematics != null ? kinematics.getOrientation() : null;
+        currentPoint = point != null ? point : fallbackPoint;
+        currentOrientation = orientation != null ? orientation : fallbackOrientation;
+    }
+
+    private CameraModel getCameraModel(boolean dockCam) {
+        if (dockCam) {
+            if (dockCamModel == null) {
+                dockCamModel = new CameraModel(api.getDockCamIntrinsics());
+            }
+            return dockCamModel;
+        }
+        if (navCamModel == null) {
+            navCamModel = new CameraModel(api.getNavCamIntrinsics());
+        }
+        return navCamModel;
+    }
+
+    // Returns the model-sized crop of the item area, owned by scope, or null
+    private Mat AR_cropping(Mat image, CameraModel camera, int targetNum, MatScope scope) {
         if (image == null) return null;
 
-        Mat cameraMatrix = new Mat(3, 3, org.opencv.core.CvType.CV_32FC1);
-        cameraMatrix.put(0, 0, cameraIntrinsics[0]);
-        Mat distCoeffs = new Mat(1, 5, org.opencv.core.CvType.CV_32FC1);
-        distCoeffs.put(0, 0, cameraIntrinsics[1]);
-
-        Dictionary dictionary = Aruco.getPredefinedDictionary(Aruco.DICT_5X5_250);
-        List<Mat> corners = new ArrayList<>();
-        Mat ids = new Mat();
-        Aruco.detectMarkers(image, dictionary, corners, ids);
-
-        if (ids.empty()) return null;
-
-        // Simplified logic: use the first detected marker to define the crop area
-        MatOfPoint2f cornerPoints = new MatOfPoint2f(corners.get(0));
-        Rect roi = Imgproc.boundingRect(cornerPoints);
-        // TODO: The champion's code has much more advanced logic to calculate the precise
-        // crop area based on marker pose. This simplified version is a starting point.
-        Mat cropped = new Mat(image, roi);
-        String imagePath = "sdcard/data/" + getApplicationContext().getPackageName() + "/immediate/DebugImages/post_" + targetNum + ".png";
-        api.saveMatImage(cropped, "post_" + targetNum + ".png");
-        return imagePath;
-    }
-
-    private List<Double> calculateFinalTurn(int targetNum) {
-        // TODO: This method should be implemented based on the champion's `Final_turn` logic.
-        // It detects the AR tag again and calculates the roll/pitch/yaw deviation from the
-        // camera center to perform a highly accurate final aim.
-        List<Double> angles = new ArrayList<>();
-        angles.add(0.0); // Yaw
-        angles.add(0.0); // Pitch
-        angles.add(0.0); // Roll
-        return angles;
-    }
-
-    public static Bitmap loadBitmapFromSDCard(String filePath) {
-        File imgFile = new File(filePath);
-        return imgFile.exists() ? BitmapFactory.decodeFile(imgFile.getAbsolutePath()) : null;
+        long start = Metrics.start();
+        MarkerLocator.Marker marker = markerLocator.locate(image, targetNum);
+        Metrics.record(Metrics.Stage.AR_DETECT, start);
+
+        if (marker == null) {
+            Metrics.increment(Metrics.Counter.AR_MISSES);
+            return null;
+        }
+
+        // Pose from the marker corners, then one warp from the item area straight to model size
+        int maxCropSize = cropMaxSize();
+        start = Metrics.start();
+        ItemAreaWarper.Pose pose = itemAreaWarper.estimatePose(marker, camera);
+        if (pose != null && targetNum <= 4) { // areas 1-4 are seen by the NavCam
+            finalAim.record(targetNum, pose);
+        }
+        Mat cropped = pose == null ? null : itemAreaWarper.warp(image, pose, camera, maxCropSize, scope);
+        Metrics.record(Metrics.Stage.CROP, start);
+        if (cropped == null) {
+            Log.w("AR_ERROR", "Marker pose unusable for area " + targetNum);
+            return null;
+        }
+        Metrics.set(Metrics.Gauge.LAST_CROP_WIDTH, cropped.cols());
+        Metrics.set(Metrics.Gauge.LAST_CROP_HEIGHT, cropped.rows());
+        if (SAVE_DEBUG_IMAGES) {
+            api.saveMatImage(cropped, "post_" + targetNum + ".png");
+        }
+        return cropped;
+    }
+
+    // Crops above the model input only help when the detectors tile them, otherwise they are scaled
+    // back down. Waits for the detector init, which is done long before the robot reaches area 1.
+    private int cropMaxSize() {
+        DetectorPool detectors = getDetectorPool();
+        return detectors == null ? CROP_MIN_SIZE : Math.min(CROP_MAX_SIZE, detectors.getMaxCropSize());
+    }
+
+    private void logMetricsSummary() {
+        for (String line : Metrics.summary().split("\n")) {
+            Log.i("METRICS", line);
+        }
+        if (backendComparison != null) {
+            Log.i("METRICS", backendComparison.summary());
+        }
+    }
+
+    // Converts a camera Mat (gray, BGR or RGBA) into the ARGB bitmap the detector expects
+    public static Bitmap matToBitmap(Mat mat) {
+        Bitmap bitmap = Bitmap.createBitmap(mat.cols(), mat.rows(), Bitmap.Config.ARGB_8888);
+        Utils.matToBitmap(mat, bitmap);
+        return bitmap;
     }
 
     private static class ItemDetectionResult {
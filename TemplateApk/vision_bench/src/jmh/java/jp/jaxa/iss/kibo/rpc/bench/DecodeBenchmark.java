@@ -0,0 +1,42 @@
+package jp.jaxa.iss.kibo.rpc.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.FloatBuffer;
+import java.util.concurrent.TimeUnit;
+
+import jp.jaxa.iss.kibo.rpc.defaultapk.DetectionBatch;
+import jp.jaxa.iss.kibo.rpc.defaultapk.YoloOutputDecoder;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DecodeBenchmark {
+    // Fraction of anchors above the confidence threshold
+    @Param({"0.001", "0.01", "0.05"})
+    public double hitRate;
+
+    private FloatBuffer tensor;
+    private YoloOutputDecoder decoder;
+    private DetectionBatch out;
+
+    @Setup
+    public void setUp() {
+        tensor = Synthetic.channelMajorTensor(42, hitRate);
+        decoder = YoloOutputDecoder.forShape(new int[]{1, 4 + Synthetic.CLASSES, Synthetic.ANCHORS}, Synthetic.CLASSES);
+        out = new DetectionBatch(1024);
+    }
+
+    @Benchmark
+    public int decode() {
+        out.clear();
+        return decoder.decode(tensor, 0, 0.5f, out);
+    }
+}
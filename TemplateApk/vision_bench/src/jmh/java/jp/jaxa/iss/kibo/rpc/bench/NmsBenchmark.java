@@ -0,0 +1,46 @@
+package jp.jaxa.iss.kibo.rpc.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+import jp.jaxa.iss.kibo.rpc.defaultapk.DetectionBatch;
+import jp.jaxa.iss.kibo.rpc.defaultapk.NonMaxSuppression;
+
+// NMS works in place, so every invocation first restores the raw boxes; the copy is part of the
+// measured time and is small next to the suppression itself
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class NmsBenchmark {
+    @Param({"50", "500", "2000"})
+    public int boxes;
+
+    @Param({"hard", "gaussian"})
+    public String method;
+
+    private DetectionBatch raw;
+    private DetectionBatch work;
+    private int methodId;
+
+    @Setup
+    public void setUp() {
+        raw = Synthetic.clusteredBoxes(7, boxes, 8);
+        work = new DetectionBatch(boxes);
+        methodId = method.equals("hard") ? NonMaxSuppression.METHOD_HARD : NonMaxSuppression.METHOD_GAUSSIAN;
+    }
+
+    @Benchmark
+    public int perClass() {
+        work.copyFrom(raw);
+        NonMaxSuppression.softNonMaxSuppression(work, 0.5f, 0.45f, 0.5f, Synthetic.INPUT_SIZE, Synthetic.INPUT_SIZE, 0, methodId, true);
+        return work.size();
+    }
+}
@@ -0,0 +1,42 @@
+package jp.jaxa.iss.kibo.rpc.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+
+import jp.jaxa.iss.kibo.rpc.defaultapk.BoxOverlap;
+import jp.jaxa.iss.kibo.rpc.defaultapk.DetectionBatch;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class OverlapBenchmark {
+    @Param({"10", "100", "1000"})
+    public int boxes;
+
+    @Param({"false", "true"})
+    public boolean bypass;
+
+    private DetectionBatch batch;
+    private final BitSet valid = new BitSet();
+
+    @Setup
+    public void setUp() {
+        batch = Synthetic.clusteredBoxes(11, boxes, 4);
+    }
+
+    @Benchmark
+    public int resolve() {
+        valid.set(0, boxes);
+        BoxOverlap.resolve(batch, valid, bypass);
+        return valid.cardinality();
+    }
+}
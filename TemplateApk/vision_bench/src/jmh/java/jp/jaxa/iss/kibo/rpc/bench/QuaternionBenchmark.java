@@ -0,0 +1,34 @@
+package jp.jaxa.iss.kibo.rpc.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import jp.jaxa.iss.kibo.rpc.defaultapk.Quaternion;
+import jp.jaxa.iss.kibo.rpc.defaultapk.QuaternionUtils;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class QuaternionBenchmark {
+    private final List<Double> angles = Arrays.asList(12.5, -4.0, 1.5);
+    private final Quaternion a = QuaternionUtils.eulerToQuaternion_use(1.5f, -4.0f, 12.5f);
+    private final Quaternion b = QuaternionUtils.eulerToQuaternion_use(-3.0f, 7.0f, 90.0f);
+
+    @Benchmark
+    public Quaternion fromAngles() {
+        return QuaternionUtils.computeQuaternionFromAngles(angles);
+    }
+
+    @Benchmark
+    public Quaternion multiply() {
+        return a.multiply(b);
+    }
+}
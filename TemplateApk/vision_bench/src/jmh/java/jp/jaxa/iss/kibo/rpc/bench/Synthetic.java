@@ -0,0 +1,58 @@
+package jp.jaxa.iss.kibo.rpc.bench;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+import jp.jaxa.iss.kibo.rpc.defaultapk.DetectionBatch;
+
+// Deterministic inputs shaped like the robot's: a 512x512 YOLOv8 head (5376 anchors) and clusters
+// of overlapping boxes, the way dense items such as coins or shells come out of the decoder
+final class Synthetic {
+    static final int INPUT_SIZE = 512;
+    static final int ANCHORS = 64 * 64 + 32 * 32 + 16 * 16;
+    static final int CLASSES = 11;
+
+    private Synthetic() {
+    }
+
+    // Channel-major [1][4 + classes][anchors] tensor; about hitRate of the anchors score above 0.5
+    static FloatBuffer channelMajorTensor(long seed, double hitRate) {
+        Random random = new Random(seed);
+        FloatBuffer t = ByteBuffer.allocateDirect(4 * (4 + CLASSES) * ANCHORS).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        for (int i = 0; i < ANCHORS; i++) {
+            t.put(i, random.nextFloat() * INPUT_SIZE);
+            t.put(ANCHORS + i, random.nextFloat() * INPUT_SIZE);
+            t.put(2 * ANCHORS + i, 8 + random.nextFloat() * 60);
+            t.put(3 * ANCHORS + i, 8 + random.nextFloat() * 60);
+            int hitClass = random.nextDouble() < hitRate ? random.nextInt(CLASSES) : -1;
+            for (int c = 0; c < CLASSES; c++) {
+                float score = c == hitClass ? 0.5f + random.nextFloat() * 0.5f : random.nextFloat() * 0.3f;
+                t.put((4 + c) * ANCHORS + i, score);
+            }
+        }
+        return t;
+    }
+
+    // n boxes in clusters of about clusterSize jittered copies, as raw decoder output before NMS
+    static DetectionBatch clusteredBoxes(long seed, int n, int clusterSize) {
+        Random random = new Random(seed);
+        DetectionBatch boxes = new DetectionBatch(n);
+        float cx = 0, cy = 0, size = 0;
+        int cls = 0;
+        for (int i = 0; i < n; i++) {
+            if (i % clusterSize == 0) {
+                cx = 40 + random.nextFloat() * (INPUT_SIZE - 80);
+                cy = 40 + random.nextFloat() * (INPUT_SIZE - 80);
+                size = 16 + random.nextFloat() * 48;
+                cls = random.nextInt(CLASSES);
+            }
+            float jx = (random.nextFloat() - 0.5f) * size * 0.3f;
+            float jy = (random.nextFloat() - 0.5f) * size * 0.3f;
+            float h = size / 2;
+            boxes.add(cls, 0.5f + random.nextFloat() * 0.5f, cx + jx - h, cy + jy - h, cx + jx + h, cy + jy + h);
+        }
+        return boxes;
+    }
+}
@@ -0,0 +1,175 @@
+package jp.jaxa.iss.kibo.rpc.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import jp.jaxa.iss.kibo.rpc.defaultapk.DetectionBatch;
+import jp.jaxa.iss.kibo.rpc.defaultapk.DetectorConfig;
+import jp.jaxa.iss.kibo.rpc.defaultapk.Metrics;
+import jp.jaxa.iss.kibo.rpc.defaultapk.NonMaxSuppression;
+import jp.jaxa.iss.kibo.rpc.defaultapk.YoloOutputDecoder;
+
+// Replays raw output tensors recorded on the robot (YourService.SAVE_DEBUG_TENSORS) through the
+// same decode -> NMS -> count path as ObjectDetector, and reports per-stage latency and allocation.
+//
+//     ReplayRunner <tensor dir> [labels.txt] [--passes N] [--warmup N] [--input 512]
+public class ReplayRunner {
+    // Same post-processing settings as the detectors on the robot
+    private static final DetectorConfig CONFIG = new DetectorConfig();
+
+    private static final Pattern SHAPE = Pattern.compile("_(\\d+(?:x\\d+)+)\\.bin$");
+
+    private static class Recording {
+        final String name;
+        final int[] shape;
+        final FloatBuffer tensor;
+
+        Recording(String name, int[] shape, FloatBuffer tensor) {
+            this.name = name;
+            this.shape = shape;
+            this.tensor = tensor;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: ReplayRunner <tensor dir> [labels.txt] [--passes N] [--warmup N] [--input 512]");
+            System.exit(2);
+        }
+        File dir = new File(args[0]);
+        List<String> labels = null;
+        int passes = 20;
+        int warmup = 5;
+        int inputSize = 512;
+        for (int a = 1; a < args.length; a++) {
+            if (args[a].equals("--passes")) {
+                passes = Integer.parseInt(args[++a]);
+            } else if (args[a].equals("--warmup")) {
+                warmup = Integer.parseInt(args[++a]);
+            } else if (args[a].equals("--input")) {
+                inputSize = Integer.parseInt(args[++a]);
+            } else {
+                labels = Files.readAllLines(new File(args[a]).toPath());
+            }
+        }
+
+        List<Recording> recordings = load(dir);
+        if (recordings.isEmpty()) {
+            System.err.println("No tensor_*.bin recordings in " + dir);
+            System.exit(1);
+        }
+        int numClasses = labels != null ? labels.size() : Math.min(recordings.get(0).shape[1], recordings.get(0).shape[2]) - 4;
+        YoloOutputDecoder decoder = YoloOutputDecoder.forShape(recordings.get(0).shape, numClasses);
+        DetectionBatch out = new DetectionBatch(64);
+
+        for (int p = 0; p < warmup; p++) {
+            for (Recording r : recordings) {
+                process(decoder, r, out, inputSize, null);
+            }
+        }
+        Metrics.reset();
+        long[] allocated = new long[2];
+        String[] results = new String[recordings.size()];
+        for (int p = 0; p < passes; p++) {
+            for (int i = 0; i < recordings.size(); i++) {
+                process(decoder, recordings.get(i), out, inputSize, allocated);
+                results[i] = describe(out, labels);
+            }
+        }
+
+        long images = (long) passes * recordings.size();
+        System.out.printf(Locale.US, "%d recordings x %d passes, %d classes, %d anchors%n",
+                recordings.size(), passes, numClasses, decoder.getNumAnchors());
+        for (int i = 0; i < recordings.size(); i++) {
+            System.out.println(recordings.get(i).name + ": " + results[i]);
+        }
+        System.out.println(Metrics.summary());
+        if (allocated[0] >= 0) {
+            System.out.printf(Locale.US, "alloc decode=%.1f B/image nms=%.1f B/image%n",
+                    allocated[0] / (double) images, allocated[1] / (double) images);
+        } else {
+            System.out.println("alloc: per-thread allocation counters not supported by this JVM");
+        }
+    }
+
+    private static void process(YoloOutputDecoder decoder, Recording r, DetectionBatch out, int inputSize, long[] allocated) {
+        out.clear();
+        long bytes0 = allocatedBytes();
+        long start = Metrics.start();
+        int decoded = decoder.decode(r.tensor, 0, CONFIG.scoreThreshold, out);
+        Metrics.record(Metrics.Stage.DECODE, start);
+        Metrics.add(Metrics.Counter.DETECTIONS_DECODED, decoded);
+        long bytes1 = allocatedBytes();
+        start = Metrics.start();
+        NonMaxSuppression.softNonMaxSuppression(out, 0.5f, CONFIG.nmsThreshold, CONFIG.scoreThreshold, inputSize, inputSize, 0, NonMaxSuppression.METHOD_HARD, true);
+        out.retainTopK(CONFIG.maxResults);
+        Metrics.record(Metrics.Stage.NMS, start);
+        Metrics.add(Metrics.Counter.DETECTIONS_KEPT, out.size());
+        long bytes2 = allocatedBytes();
+        if (allocated != null) {
+            if (bytes0 < 0) {
+                allocated[0] = -1;
+            } else if (allocated[0] >= 0) {
+                allocated[0] += bytes1 - bytes0;
+                allocated[1] += bytes2 - bytes1;
+            }
+        }
+    }
+
+    // Most confident class and how many kept boxes share it, the way YourService reports an area
+    private static String describe(DetectionBatch out, List<String> labels) {
+        if (out.size() == 0) {
+            return "none";
+        }
+        int cls = out.classId[0];
+        String name = labels != null && cls < labels.size() ? labels.get(cls) : "class " + cls;
+        return String.format(Locale.US, "%s x%d (top %.2f, %d boxes)", name, out.countClass(cls), out.score[0], out.size());
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) bean;
+            if (hotspot.isThreadAllocatedMemorySupported()) {
+                return hotspot.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    private static List<Recording> load(File dir) throws IOException {
+        File[] files = dir.listFiles();
+        List<Recording> recordings = new ArrayList<>();
+        if (files == null) {
+            return recordings;
+        }
+        Arrays.sort(files);
+        for (File f : files) {
+            Matcher m = SHAPE.matcher(f.getName());
+            if (!f.getName().startsWith("tensor_") || !m.find()) {
+                continue;
+            }
+            String[] dims = m.group(1).split("x");
+            int[] shape = new int[dims.length];
+            for (int d = 0; d < dims.length; d++) {
+                shape[d] = Integer.parseInt(dims[d]);
+            }
+            ByteBuffer bytes = ByteBuffer.allocateDirect((int) f.length()).order(ByteOrder.LITTLE_ENDIAN);
+            bytes.put(Files.readAllBytes(f.toPath()));
+            bytes.flip();
+            recordings.add(new Recording(f.getName(), shape, bytes.asFloatBuffer()));
+        }
+        return recordings;
+    }
+}
@@ -0,0 +1,88 @@
+package jp.jaxa.iss.kibo.rpc.defaultapk;
+
+import org.junit.Test;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BoxOverlapTest {
+
+    @Test
+    public void firstBoxOver65PercentAlwaysConflicts() {
+        assertTrue(BoxOverlap.overlapMarksFaulty(65.1, 0, false));
+        assertTrue(BoxOverlap.overlapMarksFaulty(65.1, 0, true));
+        assertTrue(BoxOverlap.overlapMarksFaulty(90, 90, true));
+        assertFalse(BoxOverlap.overlapMarksFaulty(65, 0, false));
+    }
+
+    @Test
+    public void secondBoxOver65PercentConflictsOnlyBelow80WithoutBypass() {
+        assertTrue(BoxOverlap.overlapMarksFaulty(0, 70, false));
+        assertTrue(BoxOverlap.overlapMarksFaulty(50, 79.9, false));
+        assertFalse(BoxOverlap.overlapMarksFaulty(0, 70, true));
+        assertFalse(BoxOverlap.overlapMarksFaulty(0, 80, false));
+        assertFalse(BoxOverlap.overlapMarksFaulty(0, 65, false));
+        assertFalse(BoxOverlap.overlapMarksFaulty(0, 0, false));
+    }
+
+    @Test
+    public void sweepMatchesAllPairs() {
+        Random random = new Random(7);
+        for (int trial = 0; trial < 500; trial++) {
+            int n = random.nextInt(40);
+            DetectionBatch boxes = new DetectionBatch(n);
+            for (int i = 0; i < n; i++) {
+                float left = random.nextInt(200);
+                float top = random.nextInt(200);
+                boxes.add(0, 1f, left, top, left + 1 + random.nextInt(60), top + 1 + random.nextInt(60));
+            }
+            boolean bypass = random.nextBoolean();
+            BitSet expected = allSet(n);
+            allPairs(boxes, expected, bypass);
+            BitSet actual = allSet(n);
+            BoxOverlap.resolve(boxes, actual, bypass);
+            assertEquals("trial " + trial, expected, actual);
+        }
+    }
+
+    @Test
+    public void touchingEdgesAndZeroAreaBoxesNeverConflict() {
+        DetectionBatch boxes = new DetectionBatch(4);
+        boxes.add(0, 1f, 0, 0, 10, 10);
+        boxes.add(0, 1f, 10, 0, 20, 10);  // Shares the right edge of box 0
+        boxes.add(0, 1f, 0, 10, 10, 20);  // Shares the bottom edge of box 0
+        boxes.add(0, 1f, 5, 2, 5, 8);     // Zero width, inside box 0
+        BitSet valid = allSet(boxes.size());
+        BoxOverlap.resolve(boxes, valid, false);
+        assertEquals(allSet(boxes.size()), valid);
+    }
+
+    // The original CAD loop: every pair, lower index first
+    private static void allPairs(DetectionBatch a, BitSet valid, boolean bypass) {
+        for (int i = 0; i < a.size(); i++) {
+            for (int j = i + 1; j < a.size(); j++) {
+                int w = Math.min((int) a.right[i], (int) a.right[j]) - Math.max((int) a.left[i], (int) a.left[j]);
+                int h = Math.min((int) a.bottom[i], (int) a.bottom[j]) - Math.max((int) a.top[i], (int) a.top[j]);
+                if (w <= 0 || h <= 0) {
+                    continue;
+                }
+                double intersection = w * h;
+                double p1 = intersection / (a.width(i) * a.height(i)) * 100;
+                double p2 = intersection / (a.width(j) * a.height(j)) * 100;
+                if (BoxOverlap.overlapMarksFaulty(p1, p2, bypass)) {
+                    valid.clear(p1 > p2 ? i : j);
+                }
+            }
+        }
+    }
+
+    private static BitSet allSet(int n) {
+        BitSet bits = new BitSet(n);
+        bits.set(0, n);
+        return bits;
+    }
+}
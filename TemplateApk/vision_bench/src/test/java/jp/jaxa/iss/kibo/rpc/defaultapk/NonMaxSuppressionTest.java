@@ -0,0 +1,151 @@
+package jp.jaxa.iss.kibo.rpc.defaultapk;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// The sorted, grid-indexed Soft-NMS against the selection-sort loop it replaced, on random boxes.
+// Scores are continuous so no two boxes tie, the one case where the two may order survivors differently.
+public class NonMaxSuppressionTest {
+    private static final float SIZE = 640;
+    private static final float SIGMA = 0.5f;
+    private static final float NT = 0.45f;
+    private static final float THRESHOLD = 0.3f;
+    private static final float MARGIN = 2;
+
+    @Test
+    public void hardMatchesSelectionSort() {
+        checkAgainstReference(NonMaxSuppression.METHOD_HARD, false, 11);
+    }
+
+    @Test
+    public void linearMatchesSelectionSort() {
+        checkAgainstReference(NonMaxSuppression.METHOD_LINEAR, false, 12);
+    }
+
+    @Test
+    public void gaussianMatchesSelectionSort() {
+        checkAgainstReference(NonMaxSuppression.METHOD_GAUSSIAN, false, 13);
+    }
+
+    @Test
+    public void perClassMatchesSelectionSortWithinClass() {
+        checkAgainstReference(NonMaxSuppression.METHOD_HARD, true, 14);
+        checkAgainstReference(NonMaxSuppression.METHOD_LINEAR, true, 15);
+        checkAgainstReference(NonMaxSuppression.METHOD_GAUSSIAN, true, 16);
+    }
+
+    private static void checkAgainstReference(int method, boolean perClass, long seed) {
+        Random random = new Random(seed);
+        int survivors = 0;
+        for (int trial = 0; trial < 300; trial++) {
+            DetectionBatch boxes = randomBoxes(random, random.nextInt(80));
+            List<float[]> expected = reference(toRows(boxes), method, perClass);
+            NonMaxSuppression.softNonMaxSuppression(boxes, SIGMA, NT, THRESHOLD, SIZE, SIZE, MARGIN, method, perClass);
+            List<float[]> actual = toRows(boxes);
+            assertEquals("trial " + trial, expected.size(), actual.size());
+            for (int i = 0; i < expected.size(); i++) {
+                for (int c = 0; c < 6; c++) {
+                    assertEquals("trial " + trial + " box " + i, expected.get(i)[c], actual.get(i)[c], 0f);
+                }
+            }
+            survivors += actual.size();
+        }
+        assertTrue(survivors > 0);
+    }
+
+    // Clusters of overlapping boxes, some touching the image edge, in three classes
+    private static DetectionBatch randomBoxes(Random random, int n) {
+        DetectionBatch boxes = new DetectionBatch(n);
+        float cx = 0, cy = 0;
+        for (int i = 0; i < n; i++) {
+            if (i % 5 == 0) {
+                cx = random.nextFloat() * SIZE;
+                cy = random.nextFloat() * SIZE;
+            }
+            float w = 8 + random.nextFloat() * 80;
+            float h = 8 + random.nextFloat() * 80;
+            float left = Math.max(0, cx - w / 2 + random.nextFloat() * 20 - 10);
+            float top = Math.max(0, cy - h / 2 + random.nextFloat() * 20 - 10);
+            boxes.add(random.nextInt(3), random.nextFloat(), left, top, Math.min(SIZE, left + w), Math.min(SIZE, top + h));
+        }
+        return boxes;
+    }
+
+    // {classId, score, left, top, right, bottom} per box, in batch order
+    private static List<float[]> toRows(DetectionBatch boxes) {
+        List<float[]> rows = new ArrayList<>();
+        for (int i = 0; i < boxes.size(); i++) {
+            rows.add(new float[]{boxes.classId[i], boxes.score[i], boxes.left[i], boxes.top[i], boxes.right[i], boxes.bottom[i]});
+        }
+        return rows;
+    }
+
+    // The original loop: edge filter, then repeatedly swap the highest remaining score to the
+    // front and decay every box after it, then drop scores at or below the threshold. perClass
+    // skips boxes of another class, as the engine does.
+    private static List<float[]> reference(List<float[]> boxes, int method, boolean perClass) {
+        float marginWidth = (MARGIN / 100) * SIZE;
+        float marginHeight = (MARGIN / 100) * SIZE;
+        List<float[]> d = new ArrayList<>();
+        for (float[] box : boxes) {
+            boolean nearEdge = box[2] < marginWidth || box[3] < marginHeight || box[4] > SIZE - marginWidth || box[5] > SIZE - marginHeight;
+            if (!nearEdge || box[1] > 0.5) {
+                d.add(box.clone());
+            }
+        }
+        int n = d.size();
+        for (int i = 0; i < n; i++) {
+            int maxpos = i;
+            float maxscore = d.get(i)[1];
+            for (int j = i + 1; j < n; j++) {
+                if (d.get(j)[1] > maxscore) {
+                    maxscore = d.get(j)[1];
+                    maxpos = j;
+                }
+            }
+            float[] temp = d.get(i);
+            d.set(i, d.get(maxpos));
+            d.set(maxpos, temp);
+
+            float[] maxBox = d.get(i);
+            for (int j = i + 1; j < n; j++) {
+                float[] box = d.get(j);
+                if (perClass && box[0] != maxBox[0]) {
+                    continue;
+                }
+                float iou = iou(maxBox, box);
+                float weight;
+                if (method == NonMaxSuppression.METHOD_LINEAR) {
+                    weight = iou > NT ? 1 - iou : 1;
+                } else if (method == NonMaxSuppression.METHOD_GAUSSIAN) {
+                    weight = (float) Math.exp(-(iou * iou) / SIGMA);
+                } else {
+                    weight = iou > NT ? 0 : 1;
+                }
+                box[1] = box[1] * weight;
+            }
+        }
+        List<float[]> result = new ArrayList<>();
+        for (float[] box : d) {
+            if (box[1] > THRESHOLD) {
+                result.add(box);
+            }
+        }
+        return result;
+    }
+
+    private static float iou(float[] a, float[] b) {
+        float intersectionWidth = Math.max(0, Math.min(a[4], b[4]) - Math.max(a[2], b[2]));
+        float intersectionHeight = Math.max(0, Math.min(a[5], b[5]) - Math.max(a[3], b[3]));
+        float intersectionArea = intersectionWidth * intersectionHeight;
+        float areaA = (a[4] - a[2]) * (a[5] - a[3]);
+        float areaB = (b[4] - b[2]) * (b[5] - b[3]);
+        return intersectionArea / (areaA + areaB - intersectionArea);
+    }
+}
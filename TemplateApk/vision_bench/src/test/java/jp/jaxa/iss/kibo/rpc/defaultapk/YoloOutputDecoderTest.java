@@ -0,0 +1,137 @@
+package jp.jaxa.iss.kibo.rpc.defaultapk;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// The strided decoder against the path it replaced: copy the output into a nested array,
+// transpose it to [anchors][4 + classes] and take each anchor's best class
+public class YoloOutputDecoderTest {
+    private static final int CLASSES = 11;
+    private static final int ANCHORS = 300;
+    private static final float THRESHOLD = 0.5f;
+
+    @Test
+    public void channelMajorMatchesTransposedReference() {
+        float[][] output = randomOutput(1);
+        DetectionBatch expected = reference(output);
+        DetectionBatch actual = new DetectionBatch(4);
+        YoloOutputDecoder decoder = YoloOutputDecoder.forShape(new int[]{1, 4 + CLASSES, ANCHORS}, CLASSES);
+        int emitted = decoder.decode(flatten(output, true), 0, THRESHOLD, actual);
+        assertEquals(expected.size(), emitted);
+        assertBatchesEqual(expected, actual);
+    }
+
+    @Test
+    public void rowMajorMatchesTransposedReference() {
+        float[][] output = randomOutput(2);
+        DetectionBatch expected = reference(output);
+        DetectionBatch actual = new DetectionBatch(4);
+        YoloOutputDecoder decoder = YoloOutputDecoder.forShape(new int[]{1, ANCHORS, 4 + CLASSES}, CLASSES);
+        decoder.decode(flatten(output, false), 0, THRESHOLD, actual);
+        assertBatchesEqual(expected, actual);
+    }
+
+    @Test
+    public void decodesSecondImageOfBatchAtOffset() {
+        float[][] first = randomOutput(3);
+        float[][] second = randomOutput(4);
+        FloatBuffer a = flatten(first, true);
+        FloatBuffer b = flatten(second, true);
+        FloatBuffer batch = FloatBuffer.allocate(a.capacity() + b.capacity());
+        batch.put(a).put(b);
+        YoloOutputDecoder decoder = YoloOutputDecoder.forShape(new int[]{2, 4 + CLASSES, ANCHORS}, CLASSES);
+        DetectionBatch actual = new DetectionBatch(4);
+        decoder.decode(batch, decoder.getTensorSize(), THRESHOLD, actual);
+        assertBatchesEqual(reference(second), actual);
+    }
+
+    @Test
+    public void emitsNothingBelowThreshold() {
+        float[][] output = randomOutput(5);
+        for (int c = 4; c < 4 + CLASSES; c++) {
+            for (int i = 0; i < ANCHORS; i++) {
+                output[c][i] = Math.min(output[c][i], THRESHOLD);
+            }
+        }
+        DetectionBatch actual = new DetectionBatch(4);
+        assertEquals(0, new YoloOutputDecoder(CLASSES, ANCHORS, true).decode(flatten(output, true), 0, THRESHOLD, actual));
+        assertEquals(0, actual.size());
+    }
+
+    @Test
+    public void forShapeFindsChannelAxis() {
+        assertEquals(ANCHORS, YoloOutputDecoder.forShape(new int[]{1, 4 + CLASSES, ANCHORS}, CLASSES).getNumAnchors());
+        assertEquals(ANCHORS, YoloOutputDecoder.forShape(new int[]{1, ANCHORS, 4 + CLASSES}, CLASSES).getNumAnchors());
+    }
+
+    // Channel-major [4 + classes][anchors] output with about a tenth of the anchors above threshold
+    private static float[][] randomOutput(long seed) {
+        Random random = new Random(seed);
+        float[][] output = new float[4 + CLASSES][ANCHORS];
+        for (int i = 0; i < ANCHORS; i++) {
+            output[0][i] = random.nextFloat() * 512;
+            output[1][i] = random.nextFloat() * 512;
+            output[2][i] = 4 + random.nextFloat() * 60;
+            output[3][i] = 4 + random.nextFloat() * 60;
+            int hit = random.nextInt(10) == 0 ? random.nextInt(CLASSES) : -1;
+            for (int c = 0; c < CLASSES; c++) {
+                output[4 + c][i] = c == hit ? 0.5f + random.nextFloat() * 0.5f : random.nextFloat() * 0.6f;
+            }
+        }
+        return output;
+    }
+
+    private static FloatBuffer flatten(float[][] output, boolean channelMajor) {
+        FloatBuffer flat = ByteBuffer.allocateDirect(4 * (4 + CLASSES) * ANCHORS).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        for (int c = 0; c < 4 + CLASSES; c++) {
+            for (int i = 0; i < ANCHORS; i++) {
+                flat.put(channelMajor ? c * ANCHORS + i : i * (4 + CLASSES) + c, output[c][i]);
+            }
+        }
+        return flat;
+    }
+
+    private static DetectionBatch reference(float[][] output) {
+        float[][] transposed = new float[ANCHORS][4 + CLASSES];
+        for (int c = 0; c < 4 + CLASSES; c++) {
+            for (int i = 0; i < ANCHORS; i++) {
+                transposed[i][c] = output[c][i];
+            }
+        }
+        DetectionBatch out = new DetectionBatch(4);
+        for (float[] anchor : transposed) {
+            int best = 0;
+            for (int c = 1; c < CLASSES; c++) {
+                if (anchor[4 + c] > anchor[4 + best]) {
+                    best = c;
+                }
+            }
+            float score = anchor[4 + best];
+            if (score > THRESHOLD) {
+                float cx = anchor[0], cy = anchor[1], w = anchor[2], h = anchor[3];
+                out.add(best, score, cx - w / 2, cy - h / 2, cx + w / 2, cy + h / 2);
+            }
+        }
+        return out;
+    }
+
+    private static void assertBatchesEqual(DetectionBatch expected, DetectionBatch actual) {
+        assertTrue(expected.size() > 0);
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.classId[i], actual.classId[i]);
+            assertEquals(expected.score[i], actual.score[i], 0f);
+            assertEquals(expected.left[i], actual.left[i], 0f);
+            assertEquals(expected.top[i], actual.top[i], 0f);
+            assertEquals(expected.right[i], actual.right[i], 0f);
+            assertEquals(expected.bottom[i], actual.bottom[i], 0f);
+        }
+    }
+}